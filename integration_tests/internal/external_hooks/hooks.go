@@ -35,11 +35,27 @@ type ResponseGlobalHooksSetup struct {
 }
 
 type ResponseFactoryHooks struct {
-	ID       int64 `json:"id"`
-	Started  bool  `json:"started"`
-	Finished bool  `json:"finished"`
-	Current  int64 `json:"current"`
-	Total    int64 `json:"total"`
+	ID        int64 `json:"id"`
+	Started   bool  `json:"started"`
+	Finished  bool  `json:"finished"`
+	Current   int64 `json:"current"`
+	Total     int64 `json:"total"`
+	DryRun    bool  `json:"dry_run"`
+	Created   int64 `json:"created"`
+	Updated   int64 `json:"updated"`
+	Deleted   int64 `json:"deleted"`
+	Unchanged int64 `json:"unchanged"`
+	Failed    int64 `json:"failed"`
+}
+
+type ResponseFanOut struct {
+	ID       int64  `json:"id"`
+	Name     string `json:"name"`
+	Project  string `json:"project"`
+	Finished bool   `json:"finished"`
+	Current  int64  `json:"current"`
+	Total    int64  `json:"total"`
+	Failed   int64  `json:"failed"`
 }
 
 type Addon struct {
@@ -194,15 +210,32 @@ func (addon *Addon) Wait(context *Context) error {
 }
 
 func (addon *Addon) factoryApply() error {
+	_, err := addon.FactoryApply()
+	return err
+}
+
+// FactoryApply applies hook scripts on the whole instance and waits until the
+// factory run is finished.
+func (addon *Addon) FactoryApply() (*ResponseFactoryHooks, error) {
+	return addon.factoryRun("/rest/external-hooks/1.0/factory/hooks")
+}
+
+// FactoryPlan computes which hook scripts would be created, updated or
+// deleted without changing anything and waits until the plan is finished.
+func (addon *Addon) FactoryPlan() (*ResponseFactoryHooks, error) {
+	return addon.factoryRun("/rest/external-hooks/1.0/factory/plan")
+}
+
+func (addon *Addon) factoryRun(path string) (*ResponseFactoryHooks, error) {
 	var reply ResponseFactoryHooks
 	err := addon.call(
 		"POST",
-		"/rest/external-hooks/1.0/factory/hooks",
+		path,
 		nil,
 		&reply,
 	)
 	if err != nil {
-		return err
+		return nil, err
 	}
 
 	for !reply.Finished {
@@ -213,7 +246,7 @@ func (addon *Addon) factoryApply() error {
 			&reply,
 		)
 		if err != nil {
-			return err
+			return nil, err
 		}
 
 		log.Debugf(
@@ -233,7 +266,24 @@ func (addon *Addon) factoryApply() error {
 
 	log.Debugf(nil, "factory finished")
 
-	return nil
+	return &reply, nil
+}
+
+// FanOuts returns changes of project hooks which are being applied on
+// repositories of their projects, the latest first.
+func (addon *Addon) FanOuts() ([]ResponseFanOut, error) {
+	var reply []ResponseFanOut
+	err := addon.call(
+		"GET",
+		"/rest/external-hooks/1.0/fanout",
+		nil,
+		&reply,
+	)
+	if err != nil {
+		return nil, err
+	}
+
+	return reply, nil
 }
 
 func (addon *Addon) Disable(key string, context *Context) error {
@@ -190,6 +190,19 @@ func main() {
 		),
 	)
 
+	run.Suite(
+		suite.WithParams(
+			TestParams{
+				Bitbucket: baseBitbucket,
+				Addon:     latestAddon,
+			},
+			suite.TestFactory_PlanMatchesApply,
+			suite.TestFactory_SkipUnchangedOnRestart,
+			suite.TestFactory_SweepAfterRepositoryDelete,
+			suite.TestFactory_ProjectHookFanOut,
+		),
+	)
+
 	run.Suite(
 		suite.WithParams(
 			TestParams{
@@ -324,6 +324,20 @@ func (suite *Suite) ConfigureHook(
 	hook *external_hooks.Hook,
 	settings external_hooks.Settings,
 	script []byte,
+) *external_hooks.Hook {
+	suite.PrepareHook(hook, settings, script)
+
+	suite.EnableHook(hook)
+
+	return hook
+}
+
+// PrepareHook writes the hook script and configures the hook, but doesn't
+// enable it, so global hooks are not applied until the factory is run.
+func (suite *Suite) PrepareHook(
+	hook *external_hooks.Hook,
+	settings external_hooks.Settings,
+	script []byte,
 ) *external_hooks.Hook {
 	path := filepath.Join("shared", "external-hooks", settings.Exe())
 
@@ -341,8 +355,6 @@ func (suite *Suite) ConfigureHook(
 	err = hook.Configure(settings)
 	suite.NoError(err, "should be able to configure hook")
 
-	suite.EnableHook(hook)
-
 	return hook
 }
 
@@ -447,6 +459,91 @@ func (suite *Suite) InstallAddon(addon Addon) string {
 	return key
 }
 
+// RestartAddon installs the add-on again, so it goes through the same startup
+// as after a restart of Bitbucket, and waits until hook scripts are found up to
+// date instead of being created again.
+func (suite *Suite) RestartAddon(addon Addon) {
+	suite.Bitbucket().FlushLogs(bitbucket.LOGS_TESTCASES)
+
+	waiter := suite.Bitbucket().WaitLog(
+		context.Background(),
+		bitbucket.LOGS_TESTCASES,
+		func(line string) bool {
+			return strings.Contains(line, "HookScripts are up to date")
+		},
+		time.Second*60,
+	)
+
+	suite.InstallAddon(addon)
+
+	log.Debugf(nil, "{add-on} waiting for hook scripts to be skipped on startup")
+
+	waiter.Wait(suite.FailNow, "hook scripts", "up to date (after restarting add-on)")
+}
+
+func (suite *Suite) PlanHookScripts() *external_hooks.ResponseFactoryHooks {
+	plan, err := suite.ExternalHooks().FactoryPlan()
+	suite.NoError(err, "should be able to plan hook scripts")
+
+	log.Debugf(
+		karma.Describe("plan", plan),
+		"{factory} planned hook scripts",
+	)
+
+	return plan
+}
+
+func (suite *Suite) ApplyHookScripts() *external_hooks.ResponseFactoryHooks {
+	applied, err := suite.ExternalHooks().FactoryApply()
+	suite.NoError(err, "should be able to apply hook scripts")
+
+	log.Debugf(
+		karma.Describe("applied", applied),
+		"{factory} applied hook scripts",
+	)
+
+	return applied
+}
+
+// WaitFanOutsFinished waits until changes of project hooks are applied on
+// every repository of the project.
+func (suite *Suite) WaitFanOutsFinished(project string) []external_hooks.ResponseFanOut {
+	deadline := time.Now().Add(time.Second * 60)
+
+	for {
+		fanOuts, err := suite.ExternalHooks().FanOuts()
+		suite.NoError(err, "should be able to list fan-outs")
+
+		found := []external_hooks.ResponseFanOut{}
+		finished := true
+		for _, fanOut := range fanOuts {
+			if fanOut.Project != project {
+				continue
+			}
+
+			found = append(found, fanOut)
+			finished = finished && fanOut.Finished
+		}
+
+		if len(found) > 0 && finished {
+			return found
+		}
+
+		if time.Now().After(deadline) {
+			suite.FailNow(
+				"fan-outs should be finished",
+				"project: %s, fan-outs: %v",
+				project,
+				found,
+			)
+
+			return found
+		}
+
+		time.Sleep(time.Millisecond * 50)
+	}
+}
+
 func (suite *Suite) DisableHook(
 	hook interface {
 		Disable() error
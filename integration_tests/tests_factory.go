@@ -0,0 +1,191 @@
+package main
+
+import (
+	"github.com/kovetskiy/stash"
+	"github.com/reconquest/atlassian-external-hooks/integration_tests/internal/external_hooks"
+	"github.com/reconquest/atlassian-external-hooks/integration_tests/internal/lojban"
+)
+
+func (suite *Suite) TestFactory_PlanMatchesApply(params TestParams) {
+	suite.UseBitbucket(params.Bitbucket, params.Cluster)
+	suite.InstallAddon(params.Addon)
+	suite.RecordHookScripts()
+
+	var (
+		project      = suite.CreateRandomProject()
+		repositories = []*stash.Repository{
+			suite.CreateRandomRepository(project),
+			suite.CreateRandomRepository(project),
+			suite.CreateRandomRepository(project),
+		}
+	)
+
+	hook := suite.ExternalHooks().OnGlobal().PreReceive()
+
+	suite.PrepareHook(
+		hook,
+		external_hooks.NewGlobalSettings().
+			UseSafePath(true).
+			WithExe(`hook.` + lojban.GetRandomID(5)),
+		text(
+			`#!/bin/bash`,
+			`echo XXX`,
+			`exit 1`,
+		),
+	)
+
+	scripts := joinHookScripts(suite.getHookScripts())
+
+	plan := suite.PlanHookScripts()
+	suite.True(plan.DryRun, "plan should be a dry run")
+	suite.Zero(plan.Failed, "plan should not fail")
+	suite.NotZero(plan.Created+plan.Updated, "plan should apply hook scripts")
+	suite.Equal(
+		scripts,
+		joinHookScripts(suite.getHookScripts()),
+		"plan should not change hook scripts",
+	)
+
+	applied := suite.ApplyHookScripts()
+	suite.False(applied.DryRun, "apply should not be a dry run")
+	suite.Zero(applied.Failed, "apply should not fail")
+	suite.Equal(plan.Created, applied.Created, "plan and apply should create the same")
+	suite.Equal(plan.Updated, applied.Updated, "plan and apply should update the same")
+	suite.Equal(plan.Deleted, applied.Deleted, "plan and apply should delete the same")
+	suite.Equal(
+		plan.Unchanged,
+		applied.Unchanged,
+		"plan and apply should keep the same unchanged",
+	)
+
+	for _, repository := range repositories {
+		Assert_PushRejected(suite, repository, `XXX`)
+	}
+
+	replan := suite.PlanHookScripts()
+	suite.Zero(
+		replan.Created+replan.Updated+replan.Deleted,
+		"plan should find nothing to apply after apply",
+	)
+
+	suite.DisableHook(hook)
+
+	suite.DetectHookScriptsLeak()
+}
+
+func (suite *Suite) TestFactory_SkipUnchangedOnRestart(params TestParams) {
+	suite.UseBitbucket(params.Bitbucket, params.Cluster)
+	suite.InstallAddon(params.Addon)
+	suite.RecordHookScripts()
+
+	var (
+		project    = suite.CreateRandomProject()
+		repository = suite.CreateRandomRepository(project)
+	)
+
+	hook := suite.ExternalHooks().OnGlobal().PreReceive()
+
+	suite.ConfigureSampleHook_FailWithMessage(hook, `XXX`)
+
+	Assert_PushRejected(suite, repository, `XXX`)
+
+	scripts := joinHookScripts(suite.getHookScripts())
+
+	suite.RestartAddon(params.Addon)
+
+	suite.Equal(
+		scripts,
+		joinHookScripts(suite.getHookScripts()),
+		"hook scripts should be kept as is after restart",
+	)
+
+	Assert_PushRejected(suite, repository, `XXX`)
+
+	suite.DisableHook(hook)
+
+	suite.DetectHookScriptsLeak()
+}
+
+func (suite *Suite) TestFactory_SweepAfterRepositoryDelete(params TestParams) {
+	suite.UseBitbucket(params.Bitbucket, params.Cluster)
+	suite.InstallAddon(params.Addon)
+	suite.RecordHookScripts()
+
+	var (
+		project = suite.CreateRandomProject()
+		kept    = suite.CreateRandomRepository(project)
+		removed = suite.CreateRandomRepository(project)
+	)
+
+	context := suite.ExternalHooks().OnProject(project.Key)
+
+	suite.ConfigureSampleHook_FailWithMessage(context.PreReceive(), `XXX`)
+	suite.WaitExternalHookEnabled(context.PreReceive())
+	suite.WaitFanOutsFinished(project.Key)
+
+	Assert_PushRejected(suite, removed, `XXX`)
+
+	scripts := suite.getHookScripts()
+
+	err := suite.Bitbucket().Repositories(project.Key).Remove(removed.Slug)
+	suite.NoError(err, "remove repository")
+
+	suite.WaitExternalHookUnconfigured()
+
+	applied := suite.ApplyHookScripts()
+	suite.Zero(applied.Failed, "apply should not fail")
+	suite.NotZero(applied.Deleted, "hook script of removed repository should be swept")
+	suite.Less(
+		len(suite.getHookScripts()),
+		len(scripts),
+		"hook script of removed repository should be deleted",
+	)
+
+	replan := suite.PlanHookScripts()
+	suite.Zero(replan.Deleted, "plan should find nothing to sweep after apply")
+
+	Assert_PushRejected(suite, kept, `XXX`)
+
+	suite.DisableHook(context.PreReceive())
+	suite.WaitExternalHookDisabled(context.PreReceive())
+
+	suite.DetectHookScriptsLeak()
+}
+
+func (suite *Suite) TestFactory_ProjectHookFanOut(params TestParams) {
+	suite.UseBitbucket(params.Bitbucket, params.Cluster)
+	suite.InstallAddon(params.Addon)
+	suite.RecordHookScripts()
+
+	project := suite.CreateRandomProject()
+
+	repositories := []*stash.Repository{}
+	for i := 0; i < 10; i++ {
+		repositories = append(repositories, suite.CreateRandomRepository(project))
+	}
+
+	context := suite.ExternalHooks().OnProject(project.Key)
+
+	suite.ConfigureSampleHook_FailWithMessage(context.PreReceive(), `XXX`)
+	suite.WaitExternalHookEnabled(context.PreReceive())
+
+	fanOuts := suite.WaitFanOutsFinished(project.Key)
+	for _, fanOut := range fanOuts {
+		suite.Equal(fanOut.Total, fanOut.Current, "fan-out should reach every repository")
+		suite.Zero(fanOut.Failed, "fan-out should not fail")
+	}
+
+	for _, repository := range repositories {
+		Assert_PushRejected(suite, repository, `XXX`)
+	}
+
+	suite.DisableHook(context.PreReceive())
+	suite.WaitExternalHookDisabled(context.PreReceive())
+	suite.WaitFanOutsFinished(project.Key)
+
+	for _, repository := range repositories {
+		Assert_PushDoesNotOutputMessages(suite, repository, `XXX`)
+	}
+
+	suite.DetectHookScriptsLeak()
+}
@@ -9,27 +9,49 @@ import com.atlassian.bitbucket.scope.GlobalScope;
 import com.atlassian.bitbucket.scope.ProjectScope;
 import com.atlassian.bitbucket.scope.RepositoryScope;
 import com.atlassian.bitbucket.scope.Scope;
+import com.atlassian.bitbucket.user.SecurityService;
 import com.atlassian.event.api.EventListener;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.ngs.stash.externalhooks.dao.ExternalHooksSettingsDao;
 import com.ngs.stash.externalhooks.dao.GlobalHookSettingsDao;
 import com.ngs.stash.externalhooks.hook.ExternalHookScript;
 import com.ngs.stash.externalhooks.util.ScopeUtil;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 
-public class BitbucketEventListener {
+public class BitbucketEventListener implements DisposableBean {
   private static Logger log = LoggerFactory.getLogger(BitbucketEventListener.class);
 
   private GlobalHookSettingsDao globalHookSettingsDao;
+  private ExternalHooksSettingsDao settingsDao;
   private HookInstaller hookInstaller;
+  private HookEventQueue queue;
 
   public BitbucketEventListener(
       @ComponentImport GlobalHookSettingsDao globalHookSettingsDao,
       @ComponentImport HooksFactory hooksFactory,
-      @ComponentImport HookInstaller hookInstaller) {
+      @ComponentImport HookInstaller hookInstaller,
+      @ComponentImport PluginSettingsFactory pluginSettingsFactory,
+      @ComponentImport SecurityService securityService) {
     this.hookInstaller = hookInstaller;
     this.globalHookSettingsDao = globalHookSettingsDao;
+    this.settingsDao = new ExternalHooksSettingsDao(pluginSettingsFactory);
+    this.queue = new HookEventQueue(securityService);
+  }
+
+  public HookEventQueue getQueue() {
+    return queue;
+  }
+
+  @Override
+  public void destroy() {
+    if (queue.stop() > 0) {
+      // scopes of dropped work are out of sync with hooks
+      settingsDao.bumpHookStateGeneration();
+    }
   }
 
   @EventListener
@@ -40,17 +62,19 @@ public class BitbucketEventListener {
       return;
     }
 
-    hookInstaller.enable(event.getScope(), script);
+    submit("enable hook", getKey(script, event.getScope()), event.getScope(), event, () -> {
+      hookInstaller.enable(event.getScope(), script);
 
-    GlobalHooks globalHooks = new GlobalHooks(this.globalHookSettingsDao.find());
-    if (globalHooks.isEnabled(script.getHookKey())) {
-      hookInstaller.enable(event.getScope(), script, globalHooks);
-    }
+      GlobalHooks globalHooks = this.globalHookSettingsDao.getGlobalHooks();
+      if (globalHooks.isEnabled(script.getHookKey())) {
+        hookInstaller.enable(event.getScope(), script, globalHooks);
+      }
 
-    log.debug(
-        "external hook enabled and hook scripts installed: {} {}",
-        event.getRepositoryHookKey(),
-        ScopeUtil.toString(event.getScope()));
+      log.debug(
+          "external hook enabled and hook scripts installed: {} {}",
+          event.getRepositoryHookKey(),
+          ScopeUtil.toString(event.getScope()));
+    });
   }
 
   @EventListener
@@ -61,17 +85,19 @@ public class BitbucketEventListener {
       return;
     }
 
-    Scope scope = event.getScope();
-    if (ScopeUtil.isRepository(scope)) {
-      hookInstaller.disable((RepositoryScope) scope, script);
-    } else if (ScopeUtil.isProject(scope)) {
-      hookInstaller.disable((ProjectScope) scope, script);
-    }
+    submit("disable hook", getKey(script, event.getScope()), event.getScope(), event, () -> {
+      Scope scope = event.getScope();
+      if (ScopeUtil.isRepository(scope)) {
+        hookInstaller.disable((RepositoryScope) scope, script);
+      } else if (ScopeUtil.isProject(scope)) {
+        hookInstaller.disable((ProjectScope) scope, script);
+      }
 
-    log.debug(
-        "external hook disabled and hook scripts uninstalled: {} {}",
-        event.getRepositoryHookKey(),
-        ScopeUtil.toString(event.getScope()));
+      log.debug(
+          "external hook disabled and hook scripts uninstalled: {} {}",
+          event.getRepositoryHookKey(),
+          ScopeUtil.toString(event.getScope()));
+    });
   }
 
   // This event is triggered when repository hook transfered from 'Enabled' to
@@ -86,44 +112,82 @@ public class BitbucketEventListener {
       return;
     }
 
-    Scope scope = event.getScope();
-    if (ScopeUtil.isRepository(scope)) {
-      hookInstaller.inherit((RepositoryScope) scope, script);
+    submit("inherit hook", getKey(script, event.getScope()), event.getScope(), event, () -> {
+      Scope scope = event.getScope();
+      if (ScopeUtil.isRepository(scope)) {
+        hookInstaller.inherit((RepositoryScope) scope, script);
 
-      log.debug(
-          "external hook inherited and hook scripts configured: {} {}",
-          event.getRepositoryHookKey(),
-          ScopeUtil.toString(event.getScope()));
-    }
+        log.debug(
+            "external hook inherited and hook scripts configured: {} {}",
+            event.getRepositoryHookKey(),
+            ScopeUtil.toString(event.getScope()));
+      }
+    });
   }
 
   @EventListener
   public void onRepositoryCreated(RepositoryCreatedEvent event) {
     RepositoryScope scope = new RepositoryScope(event.getRepository());
-    GlobalHooks globalHooks = new GlobalHooks(this.globalHookSettingsDao.find());
-    hookInstaller.getScripts().forEach((hookId, script) -> {
-      hookInstaller.inherit(scope, script);
+    submit("configure created repository", getKey(scope), scope, event, () -> {
+      GlobalHooks globalHooks = this.globalHookSettingsDao.getGlobalHooks();
+      hookInstaller.getScripts().forEach((hookId, script) -> {
+        hookInstaller.inherit(scope, script);
 
-      if (globalHooks.isEnabled(script.getHookKey())) {
-        hookInstaller.enable(scope, script, globalHooks);
-      }
-    });
+        if (globalHooks.isEnabled(script.getHookKey())) {
+          hookInstaller.enable(scope, script, globalHooks);
+        }
+      });
 
-    log.debug(
-        "external hook configured for created repository: {} {}",
-        ScopeUtil.toString(new RepositoryScope(event.getRepository())));
+      log.debug(
+          "external hook configured for created repository: {} {}",
+          ScopeUtil.toString(new RepositoryScope(event.getRepository())));
+    });
   }
 
   @EventListener
   public void onRepositoryDeleted(RepositoryDeletedEvent event) {
     RepositoryScope scope = new RepositoryScope(event.getRepository());
-    hookInstaller.getScripts().forEach((hookId, script) -> {
-      script.uninstall(scope);
-      script.uninstall(new GlobalScope(), scope);
+    submit("unconfigure deleted repository", getKey(scope), scope, event, () -> {
+      hookInstaller.getScripts().forEach((hookId, script) -> {
+        script.uninstall(scope);
+        script.uninstall(new GlobalScope(), scope);
+      });
+
+      log.debug(
+          "external hook unconfigured for deleted repository: {} {}",
+          ScopeUtil.toString(new RepositoryScope(event.getRepository())));
     });
+  }
+
+  /**
+   * Applying hook scripts on an event might walk every repository of a project, so the work is done
+   * by the queue instead of the thread which dispatches events.
+   *
+   * <p>Every handler applies the state its event leads to, so pending work of an earlier event with
+   * the same key can be replaced.
+   */
+  private void submit(String name, String key, Scope scope, Object event, Runnable work) {
+    queue.submit(name, key, ScopeUtil.getProjectId(scope), work, e -> onFailure(event, e));
+  }
+
+  /** Events of the hook on the scope: enabled, disabled or inherited. */
+  private static String getKey(ExternalHookScript script, Scope scope) {
+    return script.getHookKey() + ":" + scope.getType().getId() + ":"
+        + scope.getResourceId().orElse(0);
+  }
+
+  /** Events of the repository: created or deleted. */
+  private static String getKey(RepositoryScope scope) {
+    return "repository:" + scope.getRepository().getId();
+  }
+
+  /**
+   * Hook scripts which failed to apply on an event are out of sync with hooks until the factory
+   * applies them on every scope, so the next startup shouldn't skip it.
+   */
+  private void onFailure(Object event, RuntimeException e) {
+    log.error("Unable to apply hook scripts on {}", event.getClass().getSimpleName(), e);
 
-    log.debug(
-        "external hook unconfigured for deleted repository: {} {}",
-        ScopeUtil.toString(new RepositoryScope(event.getRepository())));
+    settingsDao.bumpHookStateGeneration();
   }
 }
@@ -28,4 +28,23 @@ public class DefaultSettings {
 
   public static final List<RepositoryHookTrigger> MergeCheckHookTriggers =
       Arrays.asList(PULL_REQUEST_MERGE);
+
+  public static final int FactoryWorkers = 4;
+
+  // every worker holds a database connection while applying hook scripts, so
+  // the amount is capped to avoid starving Bitbucket's own connection pool
+  public static final int FactoryWorkersMax = 32;
+
+  // amount of projects and repositories fetched by a single query while walking
+  public static final int FactoryPageSize = 100;
+
+  // bounds of the amount of scopes per second the factory applies hook scripts
+  // on, the actual rate adapts to latency of Bitbucket between them; the
+  // initial rate matches the fixed 10ms delay used before
+  public static final int FactoryRateMin = 10;
+  public static final int FactoryRateMax = 1000;
+  public static final int FactoryRateInitial = 100;
+
+  // hook scripts are configured on every repository unless enabled explicitly
+  public static final boolean ScopedScripts = false;
 }
@@ -0,0 +1,347 @@
+package com.ngs.stash.externalhooks;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.bitbucket.cluster.ClusterService;
+import com.atlassian.bitbucket.server.StorageService;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node-local index of executables in the safe directory, so validating settings and listing
+ * executables don't hit the home directory, which is a slow network file system in Data Center.
+ *
+ * <p>The index is kept current by a watch service. Changes made on other nodes of the cluster are
+ * not reported by watch services of network file systems, so the directory is also rescanned
+ * periodically. Checksums are computed only for files which size or modification time changed.
+ */
+public class ExecutableIndex {
+  private static Logger log = LoggerFactory.getLogger(ExecutableIndex.class);
+
+  private static final long RESCAN_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  // events usually come in bursts, e.g. a file is created and then written
+  private static final long SETTLE_MILLIS = 200;
+
+  private static final int MAX_DEPTH = 8;
+
+  private final ClusterService clusterService;
+  private final StorageService storageService;
+
+  private volatile Map<String, Entry> entries = Collections.emptyMap();
+  private volatile boolean stopped;
+  private Thread thread;
+  private WatchService watchService;
+
+  public ExecutableIndex(ClusterService clusterService, StorageService storageService) {
+    this.clusterService = clusterService;
+    this.storageService = storageService;
+  }
+
+  public synchronized void start() {
+    if (thread != null) {
+      return;
+    }
+
+    try {
+      watchService = getDirectory().toPath().getFileSystem().newWatchService();
+    } catch (IOException | UnsupportedOperationException e) {
+      log.warn("Unable to watch safe directory, it will be rescanned periodically", e);
+    }
+
+    thread = new Thread(this::run, "external-hooks-executables");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public synchronized void stop() {
+    stopped = true;
+
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        log.warn("Unable to close watch service of safe directory", e);
+      }
+    }
+
+    if (thread != null) {
+      thread.interrupt();
+    }
+  }
+
+  /** @return directory which paths of executables in safe mode are relative to */
+  public File getDirectory() {
+    File home;
+    if (clusterService.isAvailable()) {
+      home = storageService.getSharedHomeDir().toFile();
+    } else {
+      home = storageService.getHomeDir().toFile();
+    }
+
+    return new File(home, "external-hooks");
+  }
+
+  /** @return the executable given in settings or null if its path is not valid */
+  public File resolve(String path, boolean safeDir) {
+    File executable = new File(path);
+    if (safeDir) {
+      path = FilenameUtils.normalize(path);
+      if (path == null) {
+        executable = null;
+      } else {
+        executable = new File(getDirectory().getAbsoluteFile(), path);
+      }
+    }
+
+    return executable;
+  }
+
+  /**
+   * @return indexed file or null if the file is not in the safe directory or it wasn't seen yet,
+   *     in which case the caller should look at the file itself
+   */
+  public Entry get(File file) {
+    Path path;
+    try {
+      path = getDirectory().toPath().relativize(file.toPath().normalize());
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+
+    if (path.startsWith("..")) {
+      return null;
+    }
+
+    return entries.get(toKey(path));
+  }
+
+  /** @return every indexed file sorted by path */
+  public List<Entry> list() {
+    List<Entry> result = new ArrayList<>(entries.values());
+    result.sort((a, b) -> a.path.compareTo(b.path));
+
+    return result;
+  }
+
+  private void run() {
+    long scannedAt = 0;
+    boolean dirty = true;
+
+    while (!stopped) {
+      if (dirty || System.nanoTime() - scannedAt >= RESCAN_INTERVAL_NANOS) {
+        try {
+          scan();
+        } catch (RuntimeException e) {
+          log.error("Unable to scan safe directory", e);
+        }
+
+        scannedAt = System.nanoTime();
+        dirty = false;
+      }
+
+      try {
+        dirty = await(RESCAN_INTERVAL_NANOS - (System.nanoTime() - scannedAt));
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        // stopped
+      }
+    }
+  }
+
+  /** @return true if something in the directory was changed */
+  private boolean await(long nanos) throws InterruptedException {
+    if (nanos <= 0) {
+      return false;
+    }
+
+    if (watchService == null) {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+      return false;
+    }
+
+    WatchKey key = watchService.poll(nanos, TimeUnit.NANOSECONDS);
+    if (key == null) {
+      return false;
+    }
+
+    Thread.sleep(SETTLE_MILLIS);
+
+    // the whole directory is rescanned anyway, so events are only drained
+    for (; key != null; key = watchService.poll()) {
+      key.pollEvents();
+      key.reset();
+    }
+
+    return true;
+  }
+
+  private void scan() {
+    Path directory = getDirectory().toPath();
+    if (!Files.isDirectory(directory)) {
+      entries = Collections.emptyMap();
+      return;
+    }
+
+    // links are followed, but only to files within the directory, since paths
+    // outside of it are not allowed in safe mode
+    Path root;
+    try {
+      root = directory.toRealPath();
+    } catch (IOException e) {
+      log.error("Unable to resolve safe directory {}", directory, e);
+      return;
+    }
+
+    Map<String, Entry> previous = entries;
+    Map<String, Entry> result = new HashMap<>();
+
+    try {
+      Files.walkFileTree(
+          directory,
+          EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+          MAX_DEPTH,
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+              if (!isWithin(root, dir)) {
+                log.warn("Not indexing {} because it's a link outside of {}", dir, directory);
+                return FileVisitResult.SKIP_SUBTREE;
+              }
+
+              watch(dir);
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+              if (attrs.isRegularFile() && isWithin(root, file)) {
+                String key = toKey(directory.relativize(file));
+                result.put(key, index(key, file, attrs, previous.get(key)));
+              }
+
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+              log.warn("Unable to index {}: {}", file, e.toString());
+              return FileVisitResult.CONTINUE;
+            }
+          });
+    } catch (IOException e) {
+      log.error("Unable to scan safe directory {}", directory, e);
+      return;
+    }
+
+    entries = Collections.unmodifiableMap(result);
+
+    log.debug("indexed {} files in safe directory {}", result.size(), directory);
+  }
+
+  private static boolean isWithin(Path root, Path path) {
+    try {
+      return path.toRealPath().startsWith(root);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private void watch(Path dir) {
+    if (watchService == null) {
+      return;
+    }
+
+    try {
+      dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+    } catch (IOException | ClosedWatchServiceException e) {
+      log.debug("unable to watch {}: {}", dir, e.toString());
+    }
+  }
+
+  private Entry index(String key, Path file, BasicFileAttributes attrs, Entry previous) {
+    long size = attrs.size();
+    long modified = attrs.lastModifiedTime().toMillis();
+    boolean executable = Files.isExecutable(file);
+
+    String checksum;
+    if (previous != null && previous.size == size && previous.modified == modified) {
+      checksum = previous.checksum;
+    } else {
+      try (InputStream stream = Files.newInputStream(file)) {
+        checksum = DigestUtils.sha256Hex(stream);
+      } catch (IOException e) {
+        log.warn("Unable to compute checksum of {}: {}", file, e.toString());
+        checksum = null;
+      }
+    }
+
+    return new Entry(key, size, modified, executable, checksum);
+  }
+
+  private static String toKey(Path path) {
+    return path.toString().replace(File.separatorChar, '/');
+  }
+
+  public static class Entry {
+    private final String path;
+    private final long size;
+    private final long modified;
+    private final boolean executable;
+    private final String checksum;
+
+    Entry(String path, long size, long modified, boolean executable, String checksum) {
+      this.path = path;
+      this.size = size;
+      this.modified = modified;
+      this.executable = executable;
+      this.checksum = checksum;
+    }
+
+    /** @return path relative to the safe directory */
+    public String getPath() {
+      return path;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getModified() {
+      return modified;
+    }
+
+    public boolean isExecutable() {
+      return executable;
+    }
+
+    /** @return sha256 of the file or null if it couldn't be read */
+    public String getChecksum() {
+      return checksum;
+    }
+  }
+}
@@ -0,0 +1,17 @@
+package com.ngs.stash.externalhooks;
+
+import javax.xml.bind.annotation.XmlElement;
+
+public class ExternalHookSettingsFactory {
+  @XmlElement(name = "workers")
+  public Integer workers;
+
+  @XmlElement(name = "page_size")
+  public Integer pageSize;
+
+  @XmlElement(name = "rate_min")
+  public Integer rateMin;
+
+  @XmlElement(name = "rate_max")
+  public Integer rateMax;
+}
@@ -0,0 +1,8 @@
+package com.ngs.stash.externalhooks;
+
+import javax.xml.bind.annotation.XmlElement;
+
+public class ExternalHookSettingsScripts {
+  @XmlElement(name = "scoped")
+  public Boolean scoped;
+}
@@ -5,21 +5,16 @@ import java.util.Date;
 
 import javax.inject.Inject;
 
-import com.atlassian.bitbucket.auth.AuthenticationContext;
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.beehive.ClusterLockService;
 import com.atlassian.bitbucket.cluster.ClusterService;
-import com.atlassian.bitbucket.hook.repository.RepositoryHookService;
 import com.atlassian.bitbucket.hook.script.HookScriptService;
 import com.atlassian.bitbucket.permission.Permission;
-import com.atlassian.bitbucket.permission.PermissionService;
-import com.atlassian.bitbucket.project.Project;
 import com.atlassian.bitbucket.project.ProjectService;
-import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.repository.RepositoryService;
-import com.atlassian.bitbucket.scope.ProjectScope;
-import com.atlassian.bitbucket.scope.RepositoryScope;
-import com.atlassian.bitbucket.server.StorageService;
 import com.atlassian.bitbucket.user.SecurityService;
-import com.atlassian.bitbucket.user.UserService;
+import com.atlassian.plugin.Plugin;
+import com.atlassian.plugin.PluginAccessor;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
 import com.atlassian.scheduler.JobRunner;
@@ -32,14 +27,17 @@ import com.atlassian.scheduler.config.JobId;
 import com.atlassian.scheduler.config.JobRunnerKey;
 import com.atlassian.scheduler.config.RunMode;
 import com.atlassian.scheduler.config.Schedule;
-import com.atlassian.upm.api.license.PluginLicenseManager;
+import com.ngs.stash.externalhooks.ao.FactoryState;
+import com.ngs.stash.externalhooks.dao.ExternalHooksSettingsDao;
+import com.ngs.stash.externalhooks.dao.FactoryStateDao;
 import com.ngs.stash.externalhooks.dao.GlobalHookSettingsDao;
 import com.ngs.stash.externalhooks.util.Walker;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 
-public class ExternalHooksService implements JobRunner {
+public class ExternalHooksService implements JobRunner, DisposableBean {
   private static Logger log = LoggerFactory.getLogger(ExternalHooksService.class);
 
   private final JobId jobId = JobId.of("external-hooks-enable-job");
@@ -48,9 +46,16 @@ public class ExternalHooksService implements JobRunner {
   private SecurityService securityService;
 
   private Walker walker;
+  private HookInstaller hookInstaller;
   private HooksFactory hooksFactory;
+  private HooksFactoryEngine hooksFactoryEngine;
+  private ExternalHooksSettingsDao settingsDao;
   private ClusterService clusterService;
   private GlobalHookSettingsDao globalHookSettingsDao;
+  private HooksFactoryJob hooksFactoryJob;
+  private HookScriptCollector collector;
+  private HookScriptInventory inventory;
+  private FactoryFingerprint fingerprint;
 
   // We force ExternalHooksService to join to BitbucketEventListener because
   // otherwise class BitbucketEventListener is not initialized
@@ -59,45 +64,74 @@ public class ExternalHooksService implements JobRunner {
 
   @Inject
   public ExternalHooksService(
-      @ComponentImport UserService userService,
       @ComponentImport RepositoryService repositoryService,
       @ComponentImport SchedulerService schedulerService,
       @ComponentImport HookScriptService hookScriptService,
-      @ComponentImport RepositoryHookService repositoryHookService,
       @ComponentImport ProjectService projectService,
       @ComponentImport PluginSettingsFactory pluginSettingsFactory,
       @ComponentImport SecurityService securityService,
-      @ComponentImport AuthenticationContext authenticationContext,
-      @ComponentImport("permissions") PermissionService permissionService,
-      @ComponentImport PluginLicenseManager pluginLicenseManager,
       @ComponentImport ClusterService clusterService,
+      @ComponentImport ClusterLockService clusterLockService,
       @ComponentImport GlobalHookSettingsDao globalHookSettingsDao,
-      @ComponentImport StorageService storageService)
+      @ComponentImport ActiveObjects ao,
+      @ComponentImport PluginAccessor pluginAccessor,
+      @ComponentImport HookInstaller hookInstaller,
+      @ComponentImport HooksFactory hooksFactory)
       throws IOException {
     this.globalHookSettingsDao = globalHookSettingsDao;
     this.schedulerService = schedulerService;
     this.securityService = securityService;
     this.clusterService = clusterService;
 
-    this.walker = new Walker(userService, projectService, repositoryService);
-
-    // Unfortunately, no way to @ComponentImport it because Named() used here.
-    // Consider it to replace with lifecycle aware listener.
-    this.hooksFactory = new HooksFactory(
-        repositoryHookService,
-        new HookInstaller(
-            userService,
-            projectService,
-            repositoryService,
-            repositoryHookService,
-            authenticationContext,
-            permissionService,
-            pluginLicenseManager,
-            clusterService,
-            storageService,
-            hookScriptService,
-            pluginSettingsFactory,
-            securityService));
+    this.walker = new Walker(projectService, repositoryService, securityService);
+
+    // the same installer and factory as used by the event listener and rest,
+    // so all of them share caches of hook scripts
+    this.hookInstaller = hookInstaller;
+    this.hooksFactory = hooksFactory;
+
+    this.inventory = new HookScriptInventory(
+        hookScriptService, securityService, repositoryService, hookInstaller.getMappingDao());
+
+    this.hooksFactoryEngine =
+        new HooksFactoryEngine(hooksFactory, walker, inventory, securityService);
+    this.settingsDao = new ExternalHooksSettingsDao(pluginSettingsFactory);
+
+    Plugin plugin = pluginAccessor.getPlugin(Const.PLUGIN_KEY);
+    this.fingerprint = new FactoryFingerprint(
+        plugin != null ? plugin.getPluginInformation().getVersion() : null,
+        settingsDao,
+        globalHookSettingsDao,
+        repositoryService,
+        securityService);
+
+    this.hooksFactoryJob = new HooksFactoryJob(
+        schedulerService,
+        securityService,
+        clusterService,
+        clusterLockService,
+        hooksFactoryEngine,
+        inventory,
+        settingsDao,
+        globalHookSettingsDao,
+        new FactoryStateDao(ao),
+        fingerprint);
+
+    this.collector = new HookScriptCollector(
+        schedulerService,
+        securityService,
+        hookScriptService,
+        settingsDao,
+        hookInstaller.getMappingDao());
+  }
+
+  @Override
+  public void destroy() {
+    walker.stop();
+  }
+
+  public HooksFactoryJob getHooksFactoryJob() {
+    return hooksFactoryJob;
   }
 
   public void start() {
@@ -107,6 +141,12 @@ public class ExternalHooksService implements JobRunner {
 
     this.schedulerService.registerJobRunner(runner, this);
 
+    // registered on every node, so runs of a node which is gone can be resumed
+    // by any other one
+    this.hooksFactoryJob.register();
+
+    this.collector.register();
+
     try {
       // 10 seconds to give the scheduler some space for maneuver when two instances
       // of bitbucket started the same time in DC. Scheduler will pick one job
@@ -141,6 +181,7 @@ public class ExternalHooksService implements JobRunner {
     securityService
         .withPermission(Permission.SYS_ADMIN, "External Hook Plugin: creating HookScripts")
         .call(() -> {
+          migrateHookScripts();
           enableHookScripts();
           return null;
         });
@@ -152,21 +193,39 @@ public class ExternalHooksService implements JobRunner {
     return JobRunnerResponse.success();
   }
 
-  private void enableHookScripts() {
-    GlobalHooks globalHooks = new GlobalHooks(globalHookSettingsDao.find());
+  /**
+   * Mappings of hook scripts are moved from plugin settings to their own table once, the ones which
+   * are not moved yet are still read from plugin settings meanwhile.
+   */
+  private void migrateHookScripts() {
+    try {
+      hookInstaller.migrate();
+    } catch (Exception e) {
+      // retried on the next start
+      log.error("Unable to migrate hook script mappings", e);
+    }
+  }
 
-    walker.walk(new Walker.Callback() {
-      @Override
-      public void onProject(Project project) {
-        hooksFactory.apply(new ProjectScope(project), globalHooks);
+  /**
+   * Hook scripts are applied by the factory, so the work is split into shards which are picked up
+   * by all nodes of the cluster instead of the one running this job.
+   *
+   * <p>Nothing is applied if inputs of hook scripts didn't change since the last successful run,
+   * e.g. on a rolling restart of the cluster, unless hook scripts are gone.
+   */
+  private void enableHookScripts() {
+    String current = fingerprint.compute();
+    if (current.equals(settingsDao.getFactoryFingerprint())) {
+      if (!settingsDao.hasFactoryScripts() || !inventory.isEmpty()) {
+        log.info("HookScripts are up to date, not creating them: fingerprint={}", current);
+        return;
       }
 
-      @Override
-      public void onRepository(Repository repository) {
-        hooksFactory.apply(new RepositoryScope(repository), globalHooks);
-      }
-    });
+      log.warn("HookScripts are missing although nothing has changed, creating them again");
+    }
+
+    FactoryState state = hooksFactoryJob.apply();
 
-    return;
+    log.info("Creating HookScripts by factory run {}", state.getID());
   }
 }
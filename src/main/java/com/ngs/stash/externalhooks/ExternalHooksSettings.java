@@ -7,4 +7,10 @@ import javax.xml.bind.annotation.XmlRootElement;
 public class ExternalHooksSettings {
   @XmlElement(name = "triggers")
   public ExternalHookSettingsTriggers triggers = new ExternalHookSettingsTriggers();
+
+  @XmlElement(name = "factory")
+  public ExternalHookSettingsFactory factory = new ExternalHookSettingsFactory();
+
+  @XmlElement(name = "scripts")
+  public ExternalHookSettingsScripts scripts = new ExternalHookSettingsScripts();
 }
@@ -0,0 +1,71 @@
+package com.ngs.stash.externalhooks;
+
+/**
+ * Position of a factory run which allows to resume it: the phase of the walk, amount of
+ * partitions of the phase which are completely applied and the id of the last of them.
+ *
+ * <p>Projects and personal repositories are always walked in the same order, so the position is
+ * enough to skip what is done. The id is used to detect that projects or repositories were created
+ * or deleted in between and the position is not valid anymore.
+ */
+public class FactoryCursor {
+  public static final FactoryCursor START = new FactoryCursor(Phase.PROJECTS, 0, 0);
+
+  private final Phase phase;
+  private final int position;
+  private final int id;
+
+  public FactoryCursor(Phase phase, int position, int id) {
+    this.phase = phase;
+    this.position = position;
+    this.id = id;
+  }
+
+  public Phase getPhase() {
+    return phase;
+  }
+
+  /** @return amount of partitions of the phase which are done */
+  public int getPosition() {
+    return position;
+  }
+
+  /** @return id of the last project or personal repository which is done */
+  public int getId() {
+    return id;
+  }
+
+  public boolean isStart() {
+    return phase == Phase.PROJECTS && position == 0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("phase=%s position=%d id=%d", phase.getId(), position, id);
+  }
+
+  public enum Phase {
+    PROJECTS("projects"),
+    PERSONAL("personal");
+
+    private final String id;
+
+    Phase(String id) {
+      this.id = id;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public static Phase fromId(String id) {
+      for (Phase phase : values()) {
+        if (phase.id.equals(id)) {
+          return phase;
+        }
+      }
+
+      return PROJECTS;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package com.ngs.stash.externalhooks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import com.atlassian.bitbucket.hook.repository.RepositoryHookTrigger;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Page;
+import com.atlassian.bitbucket.util.PageRequest;
+import com.atlassian.bitbucket.util.PageRequestImpl;
+import com.atlassian.plugin.util.ClassLoaderUtils;
+import com.ngs.stash.externalhooks.ao.GlobalHookSettings;
+import com.ngs.stash.externalhooks.dao.ExternalHooksSettingsDao;
+import com.ngs.stash.externalhooks.dao.GlobalHookSettingsDao;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Fingerprint of everything hook scripts are rendered and configured from: version of the plugin,
+ * the hook script template, global hooks, trigger settings, generation of hook state and
+ * repositories of the instance.
+ *
+ * <p>The fingerprint is recorded by every successful factory run which applies hook scripts, so
+ * the plugin doesn't need to apply them again on startup unless some of these inputs changed.
+ */
+public class FactoryFingerprint {
+  private static final String TEMPLATE = "hook-script.template.bash";
+
+  private final String pluginVersion;
+  private final String templateHash;
+  private final ExternalHooksSettingsDao settingsDao;
+  private final GlobalHookSettingsDao globalHookSettingsDao;
+  private final RepositoryService repositoryService;
+  private final SecurityService securityService;
+
+  public FactoryFingerprint(
+      String pluginVersion,
+      ExternalHooksSettingsDao settingsDao,
+      GlobalHookSettingsDao globalHookSettingsDao,
+      RepositoryService repositoryService,
+      SecurityService securityService)
+      throws IOException {
+    this.pluginVersion = pluginVersion;
+    this.settingsDao = settingsDao;
+    this.globalHookSettingsDao = globalHookSettingsDao;
+    this.repositoryService = repositoryService;
+    this.securityService = securityService;
+
+    try (InputStream template = ClassLoaderUtils.getResourceAsStream(TEMPLATE, getClass())) {
+      if (template == null) {
+        throw new IOException("resource not found: " + TEMPLATE);
+      }
+
+      this.templateHash = DigestUtils.sha256Hex(template);
+    }
+  }
+
+  /** Computes the fingerprint of current inputs. */
+  public String compute() {
+    StringBuilder builder = new StringBuilder();
+
+    append(builder, "version", pluginVersion);
+    append(builder, "template", templateHash);
+    append(builder, "generation", settingsDao.getHookStateGeneration());
+
+    append(builder, "pre_receive", getIds(settingsDao.getPreReceiveHookTriggers()));
+    append(builder, "post_receive", getIds(settingsDao.getPostReceiveHookTriggers()));
+    append(builder, "merge_check", getIds(settingsDao.getMergeCheckHookTriggers()));
+    append(builder, "scoped", settingsDao.isScopedScripts());
+    append(builder, "repositories", getRepositories());
+
+    // rows are returned in no particular order
+    List<GlobalHookSettings> globalHooks = new ArrayList<>(globalHookSettingsDao.find());
+    globalHooks.sort(Comparator.comparing(GlobalHookSettings::getHook));
+
+    for (GlobalHookSettings settings : globalHooks) {
+      append(builder, "global", settings.getHook());
+      append(builder, "enabled", settings.getEnabled());
+      append(builder, "exe", settings.getExe());
+      append(builder, "params", settings.getParams());
+      append(builder, "async", settings.getAsync());
+      append(builder, "safe_path", settings.getSafePath());
+      append(builder, "filter", settings.getFilterPersonalRepositories());
+    }
+
+    return DigestUtils.sha256Hex(builder.toString());
+  }
+
+  /**
+   * Repositories created, forked or moved while the plugin was disabled raise no event, so the
+   * amount of repositories, the latest one and projects they belong to are inputs as well. Only ids
+   * are read, which is cheap compared to applying hook scripts.
+   */
+  private String getRepositories() {
+    return securityService
+        .withPermission(Permission.SYS_ADMIN, "atlassian-external-hooks: fingerprint repositories")
+        .call(() -> {
+          long count = 0;
+          int maxId = 0;
+          long checksum = 0;
+
+          PageRequest page = new PageRequestImpl(0, PageRequest.MAX_PAGE_LIMIT);
+          while (true) {
+            Page<Repository> repositories = repositoryService.findAll(page);
+            if (repositories.getSize() == 0) {
+              break;
+            }
+
+            for (Repository repository : repositories.getValues()) {
+              count++;
+              maxId = Math.max(maxId, repository.getId());
+
+              // summed, so the order of pages doesn't matter
+              long pair = ((long) repository.getId() << 32) | repository.getProject().getId();
+              checksum += pair * 0x9E3779B97F4A7C15L;
+            }
+
+            page = repositories.getNextPageRequest();
+            if (page == null) {
+              break;
+            }
+          }
+
+          return count + ":" + maxId + ":" + Long.toHexString(checksum);
+        });
+  }
+
+  private void append(StringBuilder builder, String key, Object value) {
+    // values are length-prefixed, so they can't be confused with each other
+    String raw = String.valueOf(value);
+    builder.append(key).append('=').append(raw.length()).append(':').append(raw).append('\n');
+  }
+
+  private String getIds(List<RepositoryHookTrigger> triggers) {
+    StringBuilder builder = new StringBuilder();
+    for (RepositoryHookTrigger trigger : triggers) {
+      builder.append(trigger.getId()).append(',');
+    }
+
+    return builder.toString();
+  }
+}
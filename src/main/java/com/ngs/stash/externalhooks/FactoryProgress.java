@@ -0,0 +1,111 @@
+package com.ngs.stash.externalhooks;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progress of a single factory run which walks the instance only once.
+ *
+ * <p>The total amount of scopes is not known until the walk is over, so it is estimated from
+ * discovered projects and average amount of repositories in projects which are already walked. The
+ * estimation becomes exact once all projects are walked.
+ *
+ * <p>Workers only bump counters, nothing is locked on the hot path. ETA is based on a moving
+ * average of time per scope which is sampled by {@link #sample()}, so it accounts for workers and
+ * throttling.
+ */
+public class FactoryProgress {
+  // weight of the latest sample in the moving average
+  private static final double SMOOTHING = 0.3;
+
+  // shorter windows are too noisy to be sampled
+  private static final long SAMPLE_WINDOW_NANOS = 1_000_000_000L;
+
+  private final AtomicInteger projects = new AtomicInteger();
+  private final AtomicInteger walkedProjects = new AtomicInteger();
+  private final AtomicInteger repositories = new AtomicInteger();
+  private volatile boolean discovered;
+
+  private final AtomicInteger current = new AtomicInteger();
+
+  // guarded by this
+  private long sampledAt = System.nanoTime();
+  private int sampledCurrent;
+  private volatile double averageNanos;
+
+  public void onProject() {
+    projects.incrementAndGet();
+  }
+
+  public void onPersonalRepository() {
+    repositories.incrementAndGet();
+  }
+
+  /** Called when all repositories of a project are walked. */
+  public void onProjectWalked(int projectRepositories) {
+    repositories.addAndGet(projectRepositories);
+    walkedProjects.incrementAndGet();
+  }
+
+  /** Called when there are no more projects and personal repositories to discover. */
+  public void onDiscovered() {
+    discovered = true;
+  }
+
+  public void onApplied() {
+    current.incrementAndGet();
+  }
+
+  /** Updates the moving average of time per scope using scopes applied since previous sample. */
+  public synchronized void sample() {
+    long now = System.nanoTime();
+    int applied = current.get() - sampledCurrent;
+    if (applied <= 0 || now - sampledAt < SAMPLE_WINDOW_NANOS) {
+      return;
+    }
+
+    double perScope = (double) (now - sampledAt) / applied;
+    if (averageNanos == 0) {
+      averageNanos = perScope;
+    } else {
+      averageNanos += SMOOTHING * (perScope - averageNanos);
+    }
+
+    sampledAt = now;
+    sampledCurrent += applied;
+  }
+
+  public int getCurrent() {
+    return current.get();
+  }
+
+  public boolean isEstimated() {
+    return !discovered || walkedProjects.get() < projects.get();
+  }
+
+  public int getTotal() {
+    int walked = walkedProjects.get();
+    int discoveredProjects = projects.get();
+    int discoveredRepositories = repositories.get();
+
+    int total = discoveredProjects + discoveredRepositories;
+    if (walked > 0 && walked < discoveredProjects) {
+      double average = (double) discoveredRepositories / walked;
+      total += (int) Math.round(average * (discoveredProjects - walked));
+    }
+
+    // the estimation can't be less than what is already done
+    return Math.max(total, current.get());
+  }
+
+  /** @return estimated seconds left or -1 if it's too early to tell */
+  public int getEta() {
+    double average = averageNanos;
+    if (average == 0) {
+      return -1;
+    }
+
+    long left = getTotal() - current.get();
+
+    return (int) Math.ceil(left * average / 1_000_000_000L);
+  }
+}
@@ -0,0 +1,44 @@
+package com.ngs.stash.externalhooks;
+
+/**
+ * Part of the instance a factory run applies hook scripts on. Projects and personal repositories
+ * are assigned to shards by their ids, so shards are disjoint and each of them can be walked by a
+ * different node of the cluster.
+ *
+ * <p>Ids are assigned by Bitbucket sequentially, so taking them modulo amount of shards spreads
+ * projects evenly even if some of them were deleted, unlike ranges of ids.
+ */
+public class FactoryShard {
+  public static final FactoryShard ALL = new FactoryShard(0, 1);
+
+  private final int index;
+  private final int count;
+
+  public FactoryShard(int index, int count) {
+    this.index = index;
+    this.count = Math.max(1, count);
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  /** @return true if the shard covers the whole instance */
+  public boolean isWhole() {
+    return count == 1;
+  }
+
+  /** @return true if the project or personal repository with the given id belongs to the shard */
+  public boolean contains(int id) {
+    return Math.floorMod(id, count) == index;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d/%d", index + 1, count);
+  }
+}
@@ -0,0 +1,205 @@
+package com.ngs.stash.externalhooks;
+
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.atlassian.bitbucket.scope.Scope;
+import com.ngs.stash.externalhooks.ao.FactoryState;
+import com.ngs.stash.externalhooks.dao.FactoryStateDao;
+import com.ngs.stash.externalhooks.util.Throttle;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes progress of a factory run to its {@link FactoryState}.
+ *
+ * <p>Workers don't touch the database: progress is flushed in background once per interval or
+ * after a batch of scopes, whichever comes first. The final state is written synchronously by
+ * {@link #finish(boolean)}.
+ *
+ * <p>Every flush also checkpoints the cursor of the run, updates its heartbeat and reads the
+ * status requested by administrator, which might be changed on any node.
+ */
+public class FactoryStateWriter implements HooksFactoryEngine.Listener {
+  private static Logger log = LoggerFactory.getLogger(FactoryStateWriter.class);
+
+  private static final long FLUSH_INTERVAL_MILLIS = 1000;
+  private static final int FLUSH_SCOPES = 500;
+
+  private final FactoryState state;
+  private final FactoryStateDao factoryStateDao;
+  private final ReconcilePlan plan;
+  private final Throttle throttle;
+  private final ScheduledExecutorService executor;
+  private final AtomicBoolean flushing = new AtomicBoolean();
+
+  // progress of previous attempts when the run is resumed
+  private final int baseCurrent;
+  private final int baseCreated;
+  private final int baseUpdated;
+  private final int baseDeleted;
+  private final int baseUnchanged;
+  private final int baseFailed;
+
+  private volatile FactoryProgress progress;
+  private volatile FactoryCursor cursor;
+  private volatile FactoryStatus status;
+  private volatile int flushed;
+
+  public FactoryStateWriter(
+      FactoryState state, FactoryStateDao factoryStateDao, ReconcilePlan plan, Throttle throttle) {
+    this.state = state;
+    this.factoryStateDao = factoryStateDao;
+    this.plan = plan;
+    this.throttle = throttle;
+
+    this.baseCurrent = state.getCurrent();
+    this.baseCreated = state.getCreated();
+    this.baseUpdated = state.getUpdated();
+    this.baseDeleted = state.getDeleted();
+    this.baseUnchanged = state.getUnchanged();
+    this.baseFailed = state.getFailed();
+
+    this.status = FactoryStatus.fromId(state.getStatus());
+
+    this.executor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+      Thread thread = new Thread(runnable, "external-hooks-factory-state-" + state.getID());
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    this.executor.scheduleWithFixedDelay(
+        this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void onScope(Scope scope, FactoryProgress progress) {
+    this.progress = progress;
+
+    if (progress.getCurrent() - flushed < FLUSH_SCOPES) {
+      return;
+    }
+
+    if (flushing.compareAndSet(false, true)) {
+      executor.execute(() -> {
+        try {
+          flush();
+        } finally {
+          flushing.set(false);
+        }
+      });
+    }
+  }
+
+  @Override
+  public void onCheckpoint(FactoryCursor cursor) {
+    this.cursor = cursor;
+  }
+
+  @Override
+  public boolean isPaused() {
+    return status == FactoryStatus.PAUSED;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return status == FactoryStatus.CANCELLED;
+  }
+
+  /** Returns the state with the latest progress which might be not flushed yet. */
+  public FactoryState getState() {
+    synchronized (state) {
+      update();
+      return state;
+    }
+  }
+
+  /**
+   * Stops flushing in background and writes the final state.
+   *
+   * @param finished false if the run is interrupted and should be resumed later
+   */
+  public void finish(boolean finished) {
+    shutdown(executor);
+
+    synchronized (state) {
+      update();
+
+      if (finished) {
+        state.setTotal(state.getCurrent());
+        state.setTotalEstimated(false);
+        state.setEta(0);
+        state.setFinished(true);
+      }
+
+      state.save();
+    }
+  }
+
+  private void flush() {
+    try {
+      FactoryState stored = factoryStateDao.find(state.getID());
+      if (stored != null) {
+        status = FactoryStatus.fromId(stored.getStatus());
+      }
+
+      synchronized (state) {
+        update();
+        state.save();
+
+        flushed = state.getCurrent() - baseCurrent;
+      }
+    } catch (Exception e) {
+      log.warn("Unable to save factory state {}: {}", state.getID(), e.toString());
+    }
+  }
+
+  private void update() {
+    FactoryProgress progress = this.progress;
+    if (progress != null) {
+      progress.sample();
+
+      state.setCurrent(baseCurrent + progress.getCurrent());
+      state.setTotal(baseCurrent + progress.getTotal());
+      state.setTotalEstimated(progress.isEstimated());
+      state.setEta(progress.getEta());
+    }
+
+    FactoryCursor cursor = this.cursor;
+    if (cursor != null) {
+      state.setPhase(cursor.getPhase().getId());
+      state.setPosition(cursor.getPosition());
+      if (cursor.getPhase() == FactoryCursor.Phase.PROJECTS) {
+        state.setLastProjectId(cursor.getId());
+      } else {
+        state.setLastRepositoryId(cursor.getId());
+      }
+    }
+
+    state.setHeartbeat(new Date());
+    state.setRate((int) Math.round(throttle.getRate()));
+
+    state.setCreated(baseCreated + plan.getCreated());
+    state.setUpdated(baseUpdated + plan.getUpdated());
+    state.setDeleted(baseDeleted + plan.getDeleted());
+    state.setUnchanged(baseUnchanged + plan.getUnchanged());
+    state.setFailed(baseFailed + plan.getFailed());
+  }
+
+  private void shutdown(ExecutorService executor) {
+    executor.shutdown();
+
+    try {
+      if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        log.warn("Factory state {} is still being flushed", state.getID());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package com.ngs.stash.externalhooks;
+
+/** Status of a factory run requested by administrator. */
+public enum FactoryStatus {
+  RUNNING("running"),
+  PAUSED("paused"),
+  CANCELLED("cancelled");
+
+  private final String id;
+
+  private FactoryStatus(String id) {
+    this.id = id;
+  }
+
+  public static FactoryStatus fromId(String id) {
+    for (FactoryStatus value : values()) {
+      if (value.getId().equals(id)) {
+        return value;
+      }
+    }
+
+    return RUNNING;
+  }
+
+  public String getId() {
+    return id;
+  }
+}
@@ -8,48 +8,48 @@ import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.setting.SettingsBuilder;
 import com.ngs.stash.externalhooks.ao.GlobalHookSettings;
 
+/**
+ * Immutable snapshot of global hooks settings. Values are copied out of entities and settings of
+ * every hook are built once, so a snapshot can be shared by threads and checking a hook on a
+ * scope neither queries the database nor allocates anything.
+ */
 public class GlobalHooks {
-  private GlobalHookSettings preReceive = null;
-  private GlobalHookSettings postReceive = null;
-  private GlobalHookSettings mergeCheck = null;
+  private static final String[] HOOK_KEYS = {
+    Const.PLUGIN_KEY + ":" + Const.PRE_RECEIVE_HOOK_ID,
+    Const.PLUGIN_KEY + ":" + Const.POST_RECEIVE_HOOK_ID,
+    Const.PLUGIN_KEY + ":" + Const.MERGE_CHECK_HOOK_ID
+  };
+
+  private static final int PRE_RECEIVE = 0;
+  private static final int POST_RECEIVE = 1;
+  private static final int MERGE_CHECK = 2;
+
+  private final Hook[] hooks = new Hook[HOOK_KEYS.length];
 
   public GlobalHooks(List<GlobalHookSettings> settings) {
-    settings.stream().forEach((setting) -> {
-      if (setting.getHook().equals(Const.PLUGIN_KEY + ":" + Const.PRE_RECEIVE_HOOK_ID)) {
-        this.preReceive = setting;
-      }
-      if (setting.getHook().equals(Const.PLUGIN_KEY + ":" + Const.POST_RECEIVE_HOOK_ID)) {
-        this.postReceive = setting;
+    for (GlobalHookSettings setting : settings) {
+      int index = indexOf(setting.getHook());
+      if (index >= 0) {
+        hooks[index] = new Hook(setting);
       }
-      if (setting.getHook().equals(Const.PLUGIN_KEY + ":" + Const.MERGE_CHECK_HOOK_ID)) {
-        this.mergeCheck = setting;
-      }
-    });
+    }
   }
 
   public boolean isEnabled(String hookKey) {
-    if (hookKey.equals(Const.PLUGIN_KEY + ":" + Const.PRE_RECEIVE_HOOK_ID)) {
-      return this.isPreReceiveEnabled();
-    }
-
-    if (hookKey.equals(Const.PLUGIN_KEY + ":" + Const.POST_RECEIVE_HOOK_ID)) {
-      return this.isPostReceiveEnabled();
-    }
+    return isEnabled(getHook(hookKey));
+  }
 
-    if (hookKey.equals(Const.PLUGIN_KEY + ":" + Const.MERGE_CHECK_HOOK_ID)) {
-      return this.isMergeCheckEnabled();
+  public FilterPersonalRepositories getFilter(String hookKey) {
+    Hook hook = getHook(hookKey);
+    if (hook == null) {
+      return FilterPersonalRepositories.DISABLED;
     }
 
-    return false;
+    return hook.filter;
   }
 
   public boolean isEligible(String hookKey, RepositoryScope scope) {
-    GlobalHookSettings globalHook = this.getHook(hookKey);
-    FilterPersonalRepositories filter =
-        FilterPersonalRepositories.fromId(globalHook.getFilterPersonalRepositories());
-    if (filter == null) {
-      filter = FilterPersonalRepositories.DISABLED;
-    }
+    FilterPersonalRepositories filter = getFilter(hookKey);
 
     boolean isPersonal = scope.getProject().getType() == ProjectType.PERSONAL;
 
@@ -62,57 +62,70 @@ public class GlobalHooks {
     return false;
   }
 
-  public GlobalHookSettings getHook(String hookKey) {
-    if (hookKey.equals(Const.PLUGIN_KEY + ":" + Const.PRE_RECEIVE_HOOK_ID)) {
-      return this.preReceive;
-    }
-
-    if (hookKey.equals(Const.PLUGIN_KEY + ":" + Const.POST_RECEIVE_HOOK_ID)) {
-      return this.postReceive;
-    }
-
-    if (hookKey.equals(Const.PLUGIN_KEY + ":" + Const.MERGE_CHECK_HOOK_ID)) {
-      return this.mergeCheck;
-    }
-
-    return null;
-  }
-
   public boolean isPreReceiveEnabled() {
-    return this.isEnabled(this.preReceive);
+    return this.isEnabled(hooks[PRE_RECEIVE]);
   }
 
   public boolean isPostReceiveEnabled() {
-    return this.isEnabled(this.postReceive);
+    return this.isEnabled(hooks[POST_RECEIVE]);
   }
 
   public boolean isMergeCheckEnabled() {
-    return this.isEnabled(this.mergeCheck);
+    return this.isEnabled(hooks[MERGE_CHECK]);
   }
 
-  private boolean isEnabled(GlobalHookSettings hook) {
-    return hook != null && hook.getEnabled();
-  }
-
-  public Settings getSettings(GlobalHookSettings hook) {
+  public Settings getSettings(String hookKey) {
+    Hook hook = getHook(hookKey);
     if (hook == null) {
       return null;
     }
 
-    SettingsBuilder settingsBuilder = new SimpleSettingsBuilder();
-    settingsBuilder.add("safe_path", hook.getSafePath());
-    settingsBuilder.add("async", hook.getAsync());
-    if (hook.getExe() != null) {
-      settingsBuilder.add("exe", hook.getExe());
+    return hook.settings;
+  }
+
+  private boolean isEnabled(Hook hook) {
+    return hook != null && hook.enabled;
+  }
+
+  private Hook getHook(String hookKey) {
+    int index = indexOf(hookKey);
+    if (index < 0) {
+      return null;
     }
-    if (hook.getParams() != null) {
-      settingsBuilder.add("params", hook.getParams());
+
+    return hooks[index];
+  }
+
+  private static int indexOf(String hookKey) {
+    for (int i = 0; i < HOOK_KEYS.length; i++) {
+      if (HOOK_KEYS[i].equals(hookKey)) {
+        return i;
+      }
     }
 
-    return settingsBuilder.build();
+    return -1;
   }
 
-  public Settings getSettings(String hookKey) {
-    return getSettings(getHook(hookKey));
+  private static class Hook {
+    private final boolean enabled;
+    private final FilterPersonalRepositories filter;
+    private final Settings settings;
+
+    Hook(GlobalHookSettings hook) {
+      this.enabled = hook.getEnabled();
+      this.filter = FilterPersonalRepositories.fromId(hook.getFilterPersonalRepositories());
+
+      SettingsBuilder settingsBuilder = new SimpleSettingsBuilder();
+      settingsBuilder.add("safe_path", hook.getSafePath());
+      settingsBuilder.add("async", hook.getAsync());
+      if (hook.getExe() != null) {
+        settingsBuilder.add("exe", hook.getExe());
+      }
+      if (hook.getParams() != null) {
+        settingsBuilder.add("params", hook.getParams());
+      }
+
+      this.settings = settingsBuilder.build();
+    }
   }
 }
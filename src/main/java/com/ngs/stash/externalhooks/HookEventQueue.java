@@ -0,0 +1,244 @@
+package com.ngs.stash.externalhooks;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.user.SecurityService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue of work caused by events which is processed by threads owned by the plugin, so
+ * dispatching events doesn't wait until hook scripts are applied on every repository of a project.
+ *
+ * <p>Work is partitioned by projects: work on the same project and its repositories is always
+ * processed by the same thread in the order it was submitted. Submitting blocks while the queue of
+ * that thread is full, which slows down events instead of piling up work.
+ *
+ * <p>Work is held for a short window before it's processed and work submitted meanwhile with the
+ * same key replaces it, e.g. a burst of events toggling a hook on a scope ends up as a single
+ * change of hook scripts which reflects the last event. Work is never held longer than a few
+ * seconds in total, so a key which keeps changing still gets processed.
+ */
+public class HookEventQueue {
+  private static Logger log = LoggerFactory.getLogger(HookEventQueue.class);
+
+  private static final int WORKERS = 4;
+
+  private static final int CAPACITY = 256;
+
+  private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+  private static final long MAX_DELAY_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  private final SecurityService securityService;
+  private final Worker[] workers;
+  private final AtomicLong coalesced = new AtomicLong();
+
+  private volatile boolean stopped;
+
+  public HookEventQueue(SecurityService securityService) {
+    this.securityService = securityService;
+
+    this.workers = new Worker[WORKERS];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Worker(i);
+      workers[i].start();
+    }
+  }
+
+  /**
+   * Submits work on the project, the work is run with elevated permissions since the user who
+   * caused the event is not known on worker threads.
+   *
+   * @param key work which is not processed yet and has the same key is replaced by this one
+   * @param projectId id of the project or 0 for the global scope
+   * @param onFailure called on the worker thread if the work failed or on the calling one if the
+   *     queue is stopped
+   */
+  public void submit(String name, String key, int projectId, Runnable work, Failure onFailure) {
+    Item item = new Item(name, key, work, onFailure);
+    if (stopped) {
+      onFailure.onFailure(new RejectedExecutionException("event queue is stopped"));
+      return;
+    }
+
+    try {
+      workers[Math.floorMod(projectId, workers.length)].put(item);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      onFailure.onFailure(new RejectedExecutionException("interrupted while submitting " + name));
+    } catch (RejectedExecutionException e) {
+      onFailure.onFailure(e);
+    }
+  }
+
+  /** @return amount of submitted work which is not processed yet */
+  public int getDepth() {
+    int depth = 0;
+    for (Worker worker : workers) {
+      depth += worker.getDepth();
+    }
+
+    return depth;
+  }
+
+  public int getCapacity() {
+    return CAPACITY * workers.length;
+  }
+
+  /** @return amount of work which was replaced by work with the same key */
+  public long getCoalesced() {
+    return coalesced.get();
+  }
+
+  /**
+   * Stops all threads, work which is not processed yet is dropped.
+   *
+   * @return amount of dropped work
+   */
+  public int stop() {
+    stopped = true;
+
+    int dropped = 0;
+    for (Worker worker : workers) {
+      dropped += worker.clear();
+      worker.interrupt();
+    }
+
+    if (dropped > 0) {
+      log.warn("Dropped {} items of event queue on stop", dropped);
+    }
+
+    return dropped;
+  }
+
+  public interface Failure {
+    void onFailure(RuntimeException e);
+  }
+
+  private static class Item {
+    private final String name;
+    private final String key;
+    private final Runnable work;
+    private final Failure onFailure;
+    private long submittedAt = System.nanoTime();
+    private long readyAt;
+
+    Item(String name, String key, Runnable work, Failure onFailure) {
+      this.name = name;
+      this.key = key;
+      this.work = work;
+      this.onFailure = onFailure;
+    }
+  }
+
+  private class Worker extends Thread {
+    private final Deque<Item> queue = new ArrayDeque<>();
+    private final Map<String, Item> pending = new HashMap<>();
+    private boolean busy;
+
+    Worker(int index) {
+      super("external-hooks-events-" + index);
+      setDaemon(true);
+    }
+
+    synchronized void put(Item item) throws InterruptedException {
+      Item previous = pending.remove(item.key);
+      if (previous != null) {
+        queue.remove(previous);
+        item.submittedAt = previous.submittedAt;
+        coalesced.incrementAndGet();
+
+        log.debug("{} replaced pending {}: {}", item.name, previous.name, item.key);
+      }
+
+      while (queue.size() >= CAPACITY && !stopped) {
+        wait();
+      }
+
+      if (stopped) {
+        throw new RejectedExecutionException("event queue is stopped");
+      }
+
+      // moved to the end, so it's still processed after everything
+      // submitted before it
+      item.readyAt = Math.min(System.nanoTime() + WINDOW_NANOS, item.submittedAt + MAX_DELAY_NANOS);
+
+      queue.addLast(item);
+      pending.put(item.key, item);
+
+      notifyAll();
+    }
+
+    synchronized Item take() throws InterruptedException {
+      busy = false;
+
+      while (true) {
+        Item head = queue.peekFirst();
+        if (head == null) {
+          wait();
+          continue;
+        }
+
+        long delay = head.readyAt - System.nanoTime();
+        if (delay > 0) {
+          TimeUnit.NANOSECONDS.timedWait(this, delay);
+          continue;
+        }
+
+        queue.pollFirst();
+        pending.remove(head.key, head);
+        busy = true;
+
+        notifyAll();
+
+        return head;
+      }
+    }
+
+    synchronized int getDepth() {
+      return queue.size() + (busy ? 1 : 0);
+    }
+
+    synchronized int clear() {
+      int dropped = queue.size();
+      queue.clear();
+      pending.clear();
+
+      notifyAll();
+
+      return dropped;
+    }
+
+    @Override
+    public void run() {
+      while (!stopped) {
+        Item item;
+        try {
+          item = take();
+        } catch (InterruptedException e) {
+          continue;
+        }
+
+        try {
+          securityService
+              .withPermission(Permission.SYS_ADMIN, "atlassian-external-hooks: " + item.name)
+              .call(() -> {
+                item.work.run();
+                return null;
+              });
+        } catch (RuntimeException e) {
+          item.onFailure.onFailure(e);
+        }
+      }
+    }
+  }
+}
@@ -1,11 +1,17 @@
 package com.ngs.stash.externalhooks;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import javax.annotation.Nonnull;
 
+import com.atlassian.activeobjects.external.ActiveObjects;
 import com.atlassian.bitbucket.auth.AuthenticationContext;
 import com.atlassian.bitbucket.cluster.ClusterService;
 import com.atlassian.bitbucket.hook.repository.GetRepositoryHookSettingsRequest;
@@ -16,8 +22,10 @@ import com.atlassian.bitbucket.hook.script.HookScriptService;
 import com.atlassian.bitbucket.hook.script.HookScriptType;
 import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.permission.PermissionService;
+import com.atlassian.bitbucket.project.Project;
 import com.atlassian.bitbucket.project.ProjectService;
 import com.atlassian.bitbucket.project.ProjectType;
+import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.repository.RepositoryService;
 import com.atlassian.bitbucket.scope.GlobalScope;
 import com.atlassian.bitbucket.scope.ProjectScope;
@@ -28,51 +36,84 @@ import com.atlassian.bitbucket.server.StorageService;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.setting.SettingsValidationErrors;
 import com.atlassian.bitbucket.user.SecurityService;
-import com.atlassian.bitbucket.user.UserService;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
-import com.atlassian.upm.api.license.PluginLicenseManager;
 import com.ngs.stash.externalhooks.dao.ExternalHooksSettingsDao;
+import com.ngs.stash.externalhooks.dao.FanOutStateDao;
+import com.ngs.stash.externalhooks.dao.HookScriptMappingDao;
 import com.ngs.stash.externalhooks.hook.ExternalHookScript;
+import com.ngs.stash.externalhooks.hook.HookScriptIndex;
+import com.ngs.stash.externalhooks.hook.HookScriptRenderer;
+import com.ngs.stash.externalhooks.util.LatencyObserver;
 import com.ngs.stash.externalhooks.util.ScopeUtil;
 import com.ngs.stash.externalhooks.util.Walker;
 
-public class HookInstaller {
+import org.springframework.beans.factory.DisposableBean;
+
+public class HookInstaller implements DisposableBean {
   private RepositoryHookService repositoryHookService;
 
   private Map<String, ExternalHookScript> scripts = new HashMap<>();
   private Walker walker;
   private SecurityService securityService;
+  private ExternalHooksSettingsDao settingsDao;
+  private HookScriptMappingDao mappingDao;
+  private HookScriptIndex index;
+  private ExecutableIndex executables;
+  private ProjectFanOut projectFanOut;
+  private LatencyObserver latency = LatencyObserver.NONE;
+
+  // Set on copies used by the factory: scoped hook scripts are verified against
+  // repository overrides instead of being trusted as is.
+  private boolean reconciling;
+
+  // Hooks whose global scoped hook script is already installed by this copy,
+  // so a factory run installs it once instead of for every repository.
+  private Map<String, Boolean> scopedGlobal;
 
   public HookInstaller(
-      @ComponentImport UserService userService,
       @ComponentImport ProjectService projectService,
       @ComponentImport RepositoryService repositoryService,
       @ComponentImport RepositoryHookService repositoryHookService,
       @ComponentImport AuthenticationContext authenticationContext,
       @ComponentImport("permissions") PermissionService permissionService,
-      @ComponentImport PluginLicenseManager pluginLicenseManager,
+      @ComponentImport LicenseValidator licenseValidator,
       @ComponentImport ClusterService clusterService,
       @ComponentImport StorageService storageService,
       @ComponentImport HookScriptService hookScriptService,
       @ComponentImport PluginSettingsFactory pluginSettingsFactory,
-      @ComponentImport SecurityService securityService)
+      @ComponentImport SecurityService securityService,
+      @ComponentImport ActiveObjects ao)
       throws IOException {
     this.repositoryHookService = repositoryHookService;
     this.securityService = securityService;
 
-    ExternalHooksSettingsDao settingsDao = new ExternalHooksSettingsDao(pluginSettingsFactory);
+    this.settingsDao = new ExternalHooksSettingsDao(pluginSettingsFactory);
+    this.mappingDao = new HookScriptMappingDao(ao, pluginSettingsFactory);
+    this.index = new HookScriptIndex(pluginSettingsFactory);
+
+    this.executables = new ExecutableIndex(clusterService, storageService);
+    this.executables.start();
+
+    this.projectFanOut = new ProjectFanOut(securityService, new FanOutStateDao(ao));
+
+    // shared by all hooks, so the template is read once and hooks with the
+    // same settings reuse rendered scripts
+    HookScriptRenderer renderer = new HookScriptRenderer(executables);
 
     this.scripts.put(
         Const.PRE_RECEIVE_HOOK_ID,
         new ExternalHookScript(
             permissionService,
-            pluginLicenseManager,
+            licenseValidator,
             clusterService,
-            storageService,
             hookScriptService,
             pluginSettingsFactory,
             securityService,
+            mappingDao,
+            index,
+            executables,
+            renderer,
             Const.PRE_RECEIVE_HOOK_ID,
             HookScriptType.PRE,
             () -> settingsDao.getPreReceiveHookTriggers()));
@@ -81,12 +122,15 @@ public class HookInstaller {
         Const.POST_RECEIVE_HOOK_ID,
         new ExternalHookScript(
             permissionService,
-            pluginLicenseManager,
+            licenseValidator,
             clusterService,
-            storageService,
             hookScriptService,
             pluginSettingsFactory,
             securityService,
+            mappingDao,
+            index,
+            executables,
+            renderer,
             Const.POST_RECEIVE_HOOK_ID,
             HookScriptType.POST,
             () -> settingsDao.getPostReceiveHookTriggers()));
@@ -95,23 +139,105 @@ public class HookInstaller {
         Const.MERGE_CHECK_HOOK_ID,
         new ExternalHookScript(
             permissionService,
-            pluginLicenseManager,
+            licenseValidator,
             clusterService,
-            storageService,
             hookScriptService,
             pluginSettingsFactory,
             securityService,
+            mappingDao,
+            index,
+            executables,
+            renderer,
             Const.MERGE_CHECK_HOOK_ID,
             HookScriptType.PRE,
             () -> settingsDao.getMergeCheckHookTriggers()));
 
-    this.walker = new Walker(userService, projectService, repositoryService);
+    this.walker = new Walker(projectService, repositoryService, securityService);
+  }
+
+  private HookInstaller(HookInstaller origin, ReconcilePlan plan, LatencyObserver latency) {
+    this.repositoryHookService = origin.repositoryHookService;
+    this.securityService = origin.securityService;
+    this.walker = origin.walker;
+    this.settingsDao = origin.settingsDao;
+    this.mappingDao = origin.mappingDao;
+    this.index = origin.index;
+    this.executables = origin.executables;
+    this.projectFanOut = origin.projectFanOut;
+    this.reconciling = true;
+    this.scopedGlobal = new ConcurrentHashMap<>();
+    this.latency = latency;
+
+    origin.scripts.forEach(
+        (hookId, script) -> this.scripts.put(hookId, script.withPlan(plan, latency)));
+  }
+
+  /**
+   * Returns a copy of this installer which reports every change of hook scripts to the given plan.
+   */
+  public HookInstaller withPlan(ReconcilePlan plan, LatencyObserver latency) {
+    return new HookInstaller(this, plan, latency);
+  }
+
+  @Override
+  public void destroy() {
+    executables.stop();
+    projectFanOut.stop();
+    walker.stop();
+    index.clear();
+  }
+
+  public ProjectFanOut getProjectFanOut() {
+    return projectFanOut;
+  }
+
+  public HookScriptMappingDao getMappingDao() {
+    return mappingDao;
+  }
+
+  public ExecutableIndex getExecutables() {
+    return executables;
   }
 
   public Map<String, ExternalHookScript> getScripts() {
     return this.scripts;
   }
 
+  /**
+   * Moves hook script mappings of all scopes from plugin settings to their own table, unless it is
+   * done already. Plugin settings can't be listed, so every key a hook script could be stored by
+   * is checked for every scope.
+   */
+  public void migrate() {
+    if (mappingDao.isMigrated()) {
+      return;
+    }
+
+    GlobalScope global = new GlobalScope();
+    scripts.values().forEach(script -> script.migrate(global));
+
+    walker.walk(new Walker.Callback() {
+      @Override
+      public void onProject(Project project) {
+        ProjectScope scope = new ProjectScope(project);
+        scripts.values().forEach(script -> script.migrate(scope));
+      }
+
+      @Override
+      public void onRepository(Repository repository) {
+        if (repository.getProject().getType().equals(ProjectType.PERSONAL)) {
+          // personal projects are not walked
+          onProject(repository.getProject());
+        }
+
+        RepositoryScope scope = new RepositoryScope(repository);
+        scripts.values().forEach(script -> script.migrate(scope));
+      }
+    });
+
+    mappingDao.setMigrated();
+  }
+
   public ExternalHookScript getScript(String idOrKey) {
     if (idOrKey.startsWith(Const.PLUGIN_KEY)) {
       // +1 stands for : after plugin key
@@ -194,41 +320,221 @@ public class HookInstaller {
   }
 
   public boolean enable(ProjectScope projectScope, ExternalHookScript script) {
+    return enable(projectScope, script, reconciling, null);
+  }
+
+  /**
+   * Same as {@link #enable(Scope, String)}, but hooks of repositories of the project are taken from
+   * the given snapshot instead of being looked up one by one.
+   */
+  public boolean enable(ProjectScope projectScope, String hookKey, ProjectHooks hooks) {
+    ExternalHookScript script = getScript(hookKey);
+    if (script == null) {
+      return false;
+    }
+
+    return enable(projectScope, script, reconciling, hooks);
+  }
+
+  /**
+   * When scoped hook scripts are turned on and no repository of the project overrides the hook, a
+   * single hook script is configured on the project instead of one script per repository.
+   *
+   * @param verify whether existing scoped hook script should be checked against repository
+   *     overrides or trusted as is
+   * @param hooks hooks of repositories of the project or null to look them up
+   */
+  private boolean enable(
+      ProjectScope projectScope, ExternalHookScript script, boolean verify, ProjectHooks hooks) {
     // cover legacy hook scripts created only on project level
     script.uninstallLegacy(projectScope);
 
-    RepositoryHookSettings projectSettings = repositoryHookService.getSettings(
-        (new GetRepositoryHookSettingsRequest.Builder(projectScope, script.getHookKey())).build());
+    GetRepositoryHookSettingsRequest request =
+        (new GetRepositoryHookSettingsRequest.Builder(projectScope, script.getHookKey())).build();
+    RepositoryHookSettings projectSettings =
+        latency.time(() -> repositoryHookService.getSettings(request));
     if (projectSettings == null) {
       return false;
     }
 
-    walker.walk(projectScope.getProject(), (repository) -> {
-      RepositoryScope repositoryScope = new RepositoryScope(repository);
-      // repositoryHookService.getByKey will return project wide's hook but with
-      // projectScope.getType() = PROJECT
-      RepositoryHook hook = repositoryHookService.getByKey(repositoryScope, script.getHookKey());
-      //
-      // isEnabled also covers 'inherited' case
-      //
-      if (ScopeUtil.isInheritedEnabled(hook, repositoryScope)) {
-        //  uninstall on repository level
-        script.uninstall(repositoryScope);
+    if (settingsDao.isScopedScripts()) {
+      if (!verify && script.isInstalledScoped(projectScope)) {
+        script.installScoped(projectSettings.getSettings(), projectScope);
+        return true;
+      }
 
-        script.install(projectSettings.getSettings(), projectScope, repositoryScope);
+      List<RepositoryScope> repositories = new ArrayList<>();
+      List<RepositoryScope> overrides = new ArrayList<>();
+      walkHooks(projectScope, script, hooks, (repositoryScope, hook) -> {
+        if (hook.getScope().getType() == ScopeType.REPOSITORY) {
+          overrides.add(repositoryScope);
+        } else {
+          repositories.add(repositoryScope);
+        }
+      });
+
+      if (overrides.isEmpty()) {
+        // installing first, so repositories are never left without the hook
+        script.installScoped(projectSettings.getSettings(), projectScope);
+        fanOut(
+            "uninstall repository hook scripts",
+            projectScope,
+            repositories,
+            (repositoryScope) -> script.uninstall(projectScope, repositoryScope));
+
+        return true;
       }
-    });
+    }
+
+    // the hook of a repository is the project wide's one with
+    // projectScope.getType() = PROJECT unless the repository overrides it
+    fanOutHooks(
+        "enable project hook",
+        projectScope,
+        script,
+        hooks,
+        (repositoryScope, hook) -> {
+          //
+          // isEnabled also covers 'inherited' case
+          //
+          if (ScopeUtil.isInheritedEnabled(hook, repositoryScope)) {
+            //  uninstall on repository level
+            script.uninstall(repositoryScope);
+
+            script.install(projectSettings.getSettings(), projectScope, repositoryScope);
+          }
+        },
+        // only once repositories have their own scripts
+        () -> script.uninstallScoped(projectScope));
 
     return true;
   }
 
+  private void walkHooks(
+      ProjectScope projectScope,
+      ExternalHookScript script,
+      ProjectHooks hooks,
+      BiConsumer<RepositoryScope, RepositoryHook> callback) {
+    if (hooks == null) {
+      walker.walk(projectScope.getProject(), (repository) -> {
+        RepositoryScope repositoryScope = new RepositoryScope(repository);
+        callback.accept(repositoryScope, getHook(repositoryScope, script));
+      });
+
+      return;
+    }
+
+    for (RepositoryScope repositoryScope : hooks.getRepositories()) {
+      RepositoryHook hook = hooks.getHook(repositoryScope, script.getHookKey());
+      if (hook == null) {
+        hook = getHook(repositoryScope, script);
+      }
+
+      callback.accept(repositoryScope, hook);
+    }
+  }
+
+  /**
+   * Same as {@link #walkHooks}, but repositories are processed concurrently.
+   *
+   * @param then runs once the callback succeeded on every repository
+   */
+  private void fanOutHooks(
+      String name,
+      ProjectScope projectScope,
+      ExternalHookScript script,
+      ProjectHooks hooks,
+      BiConsumer<RepositoryScope, RepositoryHook> callback,
+      Runnable then) {
+    if (hooks != null) {
+      walkHooks(projectScope, script, hooks, callback);
+      then.run();
+      return;
+    }
+
+    fanOut(
+        name,
+        projectScope,
+        (repositoryScope) -> callback.accept(repositoryScope, getHook(repositoryScope, script)),
+        then);
+  }
+
+  private void fanOut(String name, ProjectScope projectScope, Consumer<RepositoryScope> work) {
+    fanOut(name, projectScope, work, null);
+  }
+
+  /**
+   * Runs the work on repositories of the project in background, unless the installer is used by
+   * the factory, see {@link ProjectFanOut}.
+   *
+   * @param then runs once the work succeeded on every repository or null
+   */
+  private void fanOut(
+      String name, ProjectScope projectScope, Consumer<RepositoryScope> work, Runnable then) {
+    if (reconciling) {
+      walker.walk(projectScope.getProject(), (repository) -> {
+        work.accept(new RepositoryScope(repository));
+      });
+
+      if (then != null) {
+        then.run();
+      }
+
+      return;
+    }
+
+    List<RepositoryScope> repositories = new ArrayList<>();
+    walker.walk(projectScope.getProject(), (repository) -> {
+      repositories.add(new RepositoryScope(repository));
+    });
+
+    projectFanOut.run(name, projectScope.getProject(), repositories, work, then);
+  }
+
+  /**
+   * Runs the work on given repositories concurrently in background, unless the installer is used by
+   * the factory: the factory applies projects concurrently and throttles itself.
+   */
+  private void fanOut(
+      String name,
+      ProjectScope projectScope,
+      List<RepositoryScope> repositories,
+      Consumer<RepositoryScope> work) {
+    if (reconciling) {
+      repositories.forEach(work);
+      return;
+    }
+
+    projectFanOut.run(name, projectScope.getProject(), repositories, work, null);
+  }
+
+  private RepositoryHook getHook(RepositoryScope scope, ExternalHookScript script) {
+    return latency.time(() -> repositoryHookService.getByKey(scope, script.getHookKey()));
+  }
+
   public boolean enable(
       ProjectScope projectScope, ExternalHookScript script, GlobalHooks globalHooks) {
     // cover legacy hook scripts created only on project level
     script.uninstallLegacy(projectScope);
 
-    walker.walk(projectScope.getProject(), (repository) -> {
-      RepositoryScope repositoryScope = new RepositoryScope(repository);
+    if (settingsDao.isScopedScripts()
+        && globalHooks.getFilter(script.getHookKey()) == FilterPersonalRepositories.DISABLED) {
+      Settings globalSettings = globalHooks.getSettings(script.getHookKey());
+      if (globalSettings == null) {
+        throw new RuntimeException("empty settings for " + script.getHookKey());
+      }
+
+      // a single scoped hook script covers every repository, so it's installed
+      // once instead of by every repository at the same time
+      installScopedGlobal(script, globalSettings);
+      fanOut("enable global hook", projectScope, (repositoryScope) -> {
+        script.uninstall(new GlobalScope(), repositoryScope);
+      });
+
+      return true;
+    }
+
+    fanOut("enable global hook", projectScope, (repositoryScope) -> {
       enable(repositoryScope, script, globalHooks);
     });
 
@@ -239,7 +545,8 @@ public class HookInstaller {
     GetRepositoryHookSettingsRequest request =
         (new GetRepositoryHookSettingsRequest.Builder(scope, script.getHookKey())).build();
 
-    RepositoryHookSettings settings = repositoryHookService.getSettings(request);
+    RepositoryHookSettings settings =
+        latency.time(() -> repositoryHookService.getSettings(request));
     script.install(settings.getSettings(), scope);
 
     securityService
@@ -253,6 +560,8 @@ public class HookInstaller {
           // time is not obvious for customers
           script.uninstall(new ProjectScope(scope.getProject()), scope);
 
+          demoteScoped(scope, script);
+
           return null;
         });
 
@@ -268,10 +577,37 @@ public class HookInstaller {
     if (globalSettings == null) {
       throw new RuntimeException("empty settings for " + script.getHookKey());
     }
+
+    // without the personal repositories filter the global hook applies to every
+    // repository, so a single globally configured script is enough
+    if (settingsDao.isScopedScripts()
+        && globalHooks.getFilter(script.getHookKey()) == FilterPersonalRepositories.DISABLED) {
+      installScopedGlobal(script, globalSettings);
+      script.uninstall(new GlobalScope(), scope);
+      return true;
+    }
+
     script.install(globalSettings, new GlobalScope(), scope);
+    script.uninstallScoped(new GlobalScope());
     return true;
   }
 
+  /**
+   * Installs the global scoped hook script. Copies used by the factory install it once per run;
+   * repositories of the hook wait until it's installed before their own scripts are removed.
+   */
+  private void installScopedGlobal(ExternalHookScript script, Settings settings) {
+    if (scopedGlobal == null) {
+      script.installScoped(settings, new GlobalScope());
+      return;
+    }
+
+    scopedGlobal.computeIfAbsent(script.getHookKey(), (hookKey) -> {
+      script.installScoped(settings, new GlobalScope());
+      return true;
+    });
+  }
+
   public void disable(ProjectScope _projetScope, ExternalHookScript _script, GlobalScope _hooks) {
     // this is kind of a dirty hack but we don't really need to uninstall hooks
     // like we do it in enable() method since we know that this method is called
@@ -283,6 +619,7 @@ public class HookInstaller {
 
   public void disable(RepositoryScope scope, ExternalHookScript script, GlobalScope _hooks) {
     script.uninstall(new GlobalScope(), scope);
+    script.uninstallScoped(new GlobalScope());
     return;
   }
 
@@ -290,13 +627,37 @@ public class HookInstaller {
     // cover legacy hook scripts created only on project level
     script.uninstallLegacy(scope);
 
-    walker.walk(scope.getProject(), (repository) -> {
-      // RepositoryHook.isEnabled returns true when hook is in state 'enabled (inherited)'
-      script.uninstall(scope, new RepositoryScope(repository));
+    if (script.isInstalledScoped(scope)) {
+      // repositories have no hook scripts of their own while the scoped one exists
+      script.uninstallScoped(scope);
+      return;
+    }
+
+    // RepositoryHook.isEnabled returns true when hook is in state 'enabled (inherited)'
+    fanOut("disable project hook", scope, (repositoryScope) -> {
+      script.uninstall(scope, repositoryScope);
     });
   }
 
   public void disable(RepositoryScope scope, ExternalHookScript script) {
+    uninstall(scope, script);
+
+    if (scope.getProject().getType().equals(ProjectType.PERSONAL)) {
+      return;
+    }
+
+    securityService
+        .withPermission(
+            Permission.PROJECT_ADMIN,
+            scope.getProject(),
+            "atlassian-external-hooks: look for project hook")
+        .call(() -> {
+          demoteScoped(scope, script);
+          return null;
+        });
+  }
+
+  private void uninstall(RepositoryScope scope, ExternalHookScript script) {
     script.uninstall(scope);
 
     if (scope.getProject().getType().equals(ProjectType.PERSONAL)) {
@@ -334,7 +695,7 @@ public class HookInstaller {
       return;
     }
 
-    disable(scope, script);
+    uninstall(scope, script);
 
     // The user might not have ADMIN privileges to the project while having
     // ADMIN privileges on the repository
@@ -345,6 +706,11 @@ public class HookInstaller {
             "atlassian-external-hooks: look for project hook")
         .call(() -> {
           ProjectScope projectScope = new ProjectScope(scope.getProject());
+          if (script.isInstalledScoped(projectScope)) {
+            // the repository is already covered by the project's hook script
+            return null;
+          }
+
           RepositoryHook projectHook =
               repositoryHookService.getByKey(projectScope, script.getHookKey());
           if (projectHook.isEnabled()) {
@@ -360,4 +726,17 @@ public class HookInstaller {
           return null;
         });
   }
+
+  /**
+   * Replaces the scoped hook script of the repository's project with per-repository hook scripts
+   * once the repository overrides the project's hook.
+   */
+  private void demoteScoped(RepositoryScope scope, ExternalHookScript script) {
+    ProjectScope projectScope = new ProjectScope(scope.getProject());
+    if (!script.isInstalledScoped(projectScope)) {
+      return;
+    }
+
+    enable(projectScope, script, true, null);
+  }
 }
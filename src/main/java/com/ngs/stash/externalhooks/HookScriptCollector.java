@@ -0,0 +1,180 @@
+package com.ngs.stash.externalhooks;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import com.atlassian.bitbucket.hook.script.HookScript;
+import com.atlassian.bitbucket.hook.script.HookScriptService;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Page;
+import com.atlassian.bitbucket.util.PageRequestImpl;
+import com.atlassian.scheduler.JobRunner;
+import com.atlassian.scheduler.JobRunnerRequest;
+import com.atlassian.scheduler.JobRunnerResponse;
+import com.atlassian.scheduler.SchedulerService;
+import com.atlassian.scheduler.SchedulerServiceException;
+import com.atlassian.scheduler.config.JobConfig;
+import com.atlassian.scheduler.config.JobId;
+import com.atlassian.scheduler.config.JobRunnerKey;
+import com.atlassian.scheduler.config.RunMode;
+import com.atlassian.scheduler.config.Schedule;
+import com.ngs.stash.externalhooks.dao.ExternalHooksSettingsDao;
+import com.ngs.stash.externalhooks.dao.HookScriptMappingDao;
+import com.ngs.stash.externalhooks.util.Throttle;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes hook scripts of this plugin which are not referenced by any hook script mapping, e.g.
+ * because an event was missed. Unlike removing all hook scripts at once, repositories keep their
+ * hooks meanwhile.
+ *
+ * <p>Hook scripts are collected by short cycles: every cycle pages through hook scripts for a
+ * limited time and the next one continues from where it stopped, so the collector never keeps
+ * the database busy for long.
+ */
+public class HookScriptCollector implements JobRunner {
+  private static Logger log = LoggerFactory.getLogger(HookScriptCollector.class);
+
+  private static final JobRunnerKey RUNNER = JobRunnerKey.of("external-hooks-collector");
+
+  private static final JobId JOB = JobId.of("external-hooks-collector-job");
+
+  private static final long INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+  private static final long BUDGET_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  // a hook script is created before its mapping is stored, so recent hook
+  // scripts are never taken as orphaned ones
+  private static final long GRACE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  private static final int PAGE_SIZE = 100;
+
+  private static final int DELETES_PER_SECOND = 20;
+
+  private SchedulerService schedulerService;
+  private SecurityService securityService;
+  private HookScriptService hookScriptService;
+  private ExternalHooksSettingsDao settingsDao;
+  private HookScriptMappingDao mappingDao;
+
+  public HookScriptCollector(
+      SchedulerService schedulerService,
+      SecurityService securityService,
+      HookScriptService hookScriptService,
+      ExternalHooksSettingsDao settingsDao,
+      HookScriptMappingDao mappingDao) {
+    this.schedulerService = schedulerService;
+    this.securityService = securityService;
+    this.hookScriptService = hookScriptService;
+    this.settingsDao = settingsDao;
+    this.mappingDao = mappingDao;
+  }
+
+  public void register() {
+    schedulerService.registerJobRunner(RUNNER, this);
+
+    JobConfig job = JobConfig.forJobRunnerKey(RUNNER)
+        .withSchedule(Schedule.forInterval(
+            INTERVAL_MILLIS, new Date(System.currentTimeMillis() + INTERVAL_MILLIS)))
+        .withRunMode(RunMode.RUN_ONCE_PER_CLUSTER);
+
+    try {
+      schedulerService.scheduleJob(JOB, job);
+    } catch (SchedulerServiceException e) {
+      log.error("Unable to schedule collecting of orphaned hook scripts", e);
+    }
+  }
+
+  @Override
+  public JobRunnerResponse runJob(JobRunnerRequest request) {
+    // mappings which are not migrated yet would be taken as missing ones
+    if (!mappingDao.isMigrated()) {
+      return JobRunnerResponse.aborted("hook script mappings are not migrated yet");
+    }
+
+    String result = securityService
+        .withPermission(Permission.SYS_ADMIN, "atlassian-external-hooks: collect hook scripts")
+        .call(this::collect);
+
+    return JobRunnerResponse.success(result);
+  }
+
+  private String collect() {
+    long deadline = System.currentTimeMillis() + BUDGET_MILLIS;
+    Date threshold = new Date(System.currentTimeMillis() - GRACE_MILLIS);
+    Throttle throttle = new Throttle(1000 / DELETES_PER_SECOND, TimeUnit.MILLISECONDS);
+
+    int start = settingsDao.getCollectorCursor();
+    int scanned = 0;
+    int reclaimed = 0;
+
+    while (System.currentTimeMillis() < deadline) {
+      Page<HookScript> page = hookScriptService.findByPluginKey(
+          Const.PLUGIN_KEY, new PageRequestImpl(start, PAGE_SIZE));
+
+      List<HookScript> scripts = page.stream().collect(Collectors.toList());
+      Set<Long> referenced = mappingDao.findReferenced(
+          scripts.stream().map(HookScript::getId).collect(Collectors.toList()));
+
+      int deleted = 0;
+      for (HookScript script : scripts) {
+        scanned++;
+
+        if (referenced.contains(script.getId()) || isRecent(script, threshold)) {
+          continue;
+        }
+
+        throttle.acquire();
+        if (delete(script)) {
+          deleted++;
+        }
+      }
+
+      reclaimed += deleted;
+
+      if (page.getIsLastPage()) {
+        // the next cycle starts the next pass
+        start = 0;
+        break;
+      }
+
+      // deleted hook scripts shift the following ones back
+      start += scripts.size() - deleted;
+    }
+
+    settingsDao.setCollectorCursor(start);
+    settingsDao.recordCollectorCycle(scanned, reclaimed);
+
+    log.info(
+        "Collected orphaned hook scripts: scanned={} reclaimed={} cursor={}",
+        scanned,
+        reclaimed,
+        start);
+
+    return "scanned=" + scanned + " reclaimed=" + reclaimed;
+  }
+
+  private boolean isRecent(HookScript script, Date threshold) {
+    return !script.getCreatedDate().before(threshold) || !script.getUpdatedDate().before(threshold);
+  }
+
+  private boolean delete(HookScript script) {
+    try {
+      hookScriptService.delete(script);
+    } catch (RuntimeException e) {
+      // might be deleted meanwhile by the factory or an event
+      log.warn("Unable to delete orphaned hook script {}: {}", script.getId(), e.toString());
+      return false;
+    }
+
+    log.debug("deleted orphaned hook script {}: id={}", script.getName(), script.getId());
+
+    return true;
+  }
+}
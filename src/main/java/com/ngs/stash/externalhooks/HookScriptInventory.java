@@ -0,0 +1,172 @@
+package com.ngs.stash.externalhooks;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.atlassian.bitbucket.hook.script.HookScript;
+import com.atlassian.bitbucket.hook.script.HookScriptService;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Page;
+import com.atlassian.bitbucket.util.PageRequest;
+import com.atlassian.bitbucket.util.PageRequestImpl;
+import com.ngs.stash.externalhooks.ao.HookScriptMapping;
+import com.ngs.stash.externalhooks.dao.HookScriptMappingDao;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Hook scripts which actually exist in Bitbucket and belong to this plugin. */
+public class HookScriptInventory {
+  private static Logger log = LoggerFactory.getLogger(HookScriptInventory.class);
+
+  private HookScriptService hookScriptService;
+  private SecurityService securityService;
+  private RepositoryService repositoryService;
+  private HookScriptMappingDao mappingDao;
+
+  public HookScriptInventory(
+      HookScriptService hookScriptService,
+      SecurityService securityService,
+      RepositoryService repositoryService,
+      HookScriptMappingDao mappingDao) {
+    this.hookScriptService = hookScriptService;
+    this.securityService = securityService;
+    this.repositoryService = repositoryService;
+    this.mappingDao = mappingDao;
+  }
+
+  /**
+   * Deletes hook scripts which were neither referenced by any scope while the given plan was
+   * computed nor are referenced by any hook script mapping, so a plan which didn't see the whole
+   * instance itself, e.g. one of a sharded run, relies on mappings only.
+   *
+   * <p>Mappings of deleted repositories don't count as references, since the event of the deletion
+   * might be missed or not cover every kind of hook script; such mappings are deleted as well.
+   *
+   * <p>Scripts created or updated after the plan started are kept because they might come from
+   * events which happened at the same time. Nothing is deleted if some scopes failed, since their
+   * scripts were not referenced either.
+   */
+  public void sweep(ReconcilePlan plan) {
+    if (plan.getFailed() > 0) {
+      log.warn(
+          "Not looking for orphaned hook scripts because {} hook scripts failed to apply",
+          plan.getFailed());
+      return;
+    }
+
+    // mappings which are not migrated yet would be taken as missing ones
+    if (!mappingDao.isMigrated()) {
+      log.warn("Not looking for orphaned hook scripts because mappings are not migrated yet");
+      return;
+    }
+
+    List<HookScript> orphans = new ArrayList<>();
+    List<HookScriptMapping> stale = new ArrayList<>();
+    Set<Integer> deletedRepositories = new HashSet<>();
+
+    PageRequest page = new PageRequestImpl(0, 100);
+    while (true) {
+      Page<HookScript> scripts = hookScriptService.findByPluginKey(Const.PLUGIN_KEY, page);
+      if (scripts.getSize() == 0) {
+        break;
+      }
+
+      List<HookScript> candidates = new ArrayList<>();
+      for (HookScript script : scripts.getValues()) {
+        if (isOrphan(script, plan)) {
+          candidates.add(script);
+        }
+      }
+
+      Set<Long> mapped = new HashSet<>();
+      for (HookScriptMapping mapping : mappingDao.findByScripts(
+          candidates.stream().map(HookScript::getId).collect(Collectors.toList()))) {
+        if (isDeleted(mapping.getRepositoryId(), deletedRepositories)) {
+          stale.add(mapping);
+        } else {
+          mapped.add(mapping.getScriptId());
+        }
+      }
+
+      for (HookScript script : candidates) {
+        if (!mapped.contains(script.getId())) {
+          orphans.add(script);
+        }
+      }
+
+      page = scripts.getNextPageRequest();
+      if (page == null) {
+        break;
+      }
+    }
+
+    // deleting only after paging is done, otherwise pages would shift
+    if (!plan.isDryRun()) {
+      mappingDao.delete(stale.toArray(new HookScriptMapping[0]));
+    }
+
+    for (HookScript script : orphans) {
+      plan.onDelete(script.getId());
+      if (plan.isDryRun()) {
+        continue;
+      }
+
+      securityService
+          .withPermission(
+              Permission.SYS_ADMIN, "atlassian-external-hooks: delete orphaned hook script")
+          .call(() -> {
+            hookScriptService.delete(script);
+            return null;
+          });
+
+      log.debug("deleted orphaned hook script {}: id={}", script.getName(), script.getId());
+    }
+
+    log.info("Found {} orphaned hook scripts (dry_run={})", orphans.size(), plan.isDryRun());
+  }
+
+  /** @return true if there are no hook scripts of this plugin at all */
+  public boolean isEmpty() {
+    return securityService
+        .withPermission(Permission.SYS_ADMIN, "atlassian-external-hooks: find hook scripts")
+        .call(() -> hookScriptService
+            .findByPluginKey(Const.PLUGIN_KEY, new PageRequestImpl(0, 1))
+            .getSize() == 0);
+  }
+
+  /** @return true if the mapped repository doesn't exist anymore, 0 stands for no repository */
+  private boolean isDeleted(int repositoryId, Set<Integer> deleted) {
+    if (repositoryId == 0) {
+      return false;
+    }
+
+    if (deleted.contains(repositoryId)) {
+      return true;
+    }
+
+    boolean missing = securityService
+        .withPermission(Permission.SYS_ADMIN, "atlassian-external-hooks: find repository")
+        .call(() -> repositoryService.getById(repositoryId) == null);
+    if (missing) {
+      deleted.add(repositoryId);
+    }
+
+    return missing;
+  }
+
+  private boolean isOrphan(HookScript script, ReconcilePlan plan) {
+    // a dry run doesn't delete scripts of scopes, so they are still found here
+    if (plan.isReferenced(script.getId()) || plan.isDeleted(script.getId())) {
+      return false;
+    }
+
+    return script.getCreatedDate().before(plan.getStartedAt())
+        && script.getUpdatedDate().before(plan.getStartedAt());
+  }
+}
@@ -1,9 +1,13 @@
 package com.ngs.stash.externalhooks;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import com.atlassian.bitbucket.hook.repository.RepositoryHook;
 import com.atlassian.bitbucket.hook.repository.RepositoryHookSearchRequest;
 import com.atlassian.bitbucket.hook.repository.RepositoryHookService;
 import com.atlassian.bitbucket.hook.script.HookScript;
+import com.atlassian.bitbucket.project.ProjectType;
 import com.atlassian.bitbucket.scope.GlobalScope;
 import com.atlassian.bitbucket.scope.ProjectScope;
 import com.atlassian.bitbucket.scope.RepositoryScope;
@@ -13,6 +17,7 @@ import com.atlassian.bitbucket.util.Page;
 import com.atlassian.bitbucket.util.PageRequest;
 import com.atlassian.bitbucket.util.PageRequestImpl;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.ngs.stash.externalhooks.util.LatencyObserver;
 import com.ngs.stash.externalhooks.util.ScopeUtil;
 
 import org.slf4j.Logger;
@@ -22,6 +27,12 @@ public class HooksFactory {
   private static Logger log = LoggerFactory.getLogger(HooksFactory.class);
   private RepositoryHookService repositoryHookService;
   private HookInstaller hookInstaller;
+  private ReconcilePlan plan = new ReconcilePlan(false);
+  private LatencyObserver latency = LatencyObserver.NONE;
+
+  // Hooks of repositories found while applying them, kept until their project
+  // is applied. Only copies made for a run remember them.
+  private Map<Integer, ProjectHooks> projects;
 
   public HooksFactory(
       @ComponentImport RepositoryHookService repositoryHookService,
@@ -30,6 +41,20 @@ public class HooksFactory {
     this.hookInstaller = hookInstaller;
   }
 
+  /**
+   * Returns a copy of this factory which computes the given plan while applying hook scripts and
+   * writes nothing if the plan is a dry-run one. Latency of Bitbucket services is reported to the
+   * given observer.
+   */
+  public HooksFactory withPlan(ReconcilePlan plan, LatencyObserver latency) {
+    HooksFactory factory =
+        new HooksFactory(repositoryHookService, hookInstaller.withPlan(plan, latency));
+    factory.plan = plan;
+    factory.latency = latency;
+    factory.projects = new ConcurrentHashMap<>();
+    return factory;
+  }
+
   /**
    * Re-creates Atlassian {@link HookScript} for every {@link RepositoryHook}. Works with both
    * {@link ProjectScope} and {@link RepositoryScope}
@@ -42,8 +67,10 @@ public class HooksFactory {
     RepositoryHookSearchRequest.Builder searchBuilder =
         new RepositoryHookSearchRequest.Builder(scope);
 
-    Page<RepositoryHook> page = repositoryHookService.search(
-        searchBuilder.build(), new PageRequestImpl(0, PageRequest.MAX_PAGE_LIMIT));
+    Page<RepositoryHook> page = latency.time(() -> repositoryHookService.search(
+        searchBuilder.build(), new PageRequestImpl(0, PageRequest.MAX_PAGE_LIMIT)));
+
+    ProjectHooks projectHooks = getProjectHooks(scope, page);
 
     Integer created = 0;
     Integer deleted = 0;
@@ -68,12 +95,18 @@ public class HooksFactory {
 
       if (!scopeSkip) {
         try {
-          hookInstaller.enable(scope, hookKey);
+          if (projectHooks != null) {
+            hookInstaller.enable((ProjectScope) scope, hookKey, projectHooks);
+          } else {
+            hookInstaller.enable(scope, hookKey);
+          }
 
           created++;
         } catch (Exception e) {
           e.printStackTrace();
 
+          plan.onFailure();
+
           log.error("Unable to install hook script {}: {}", hookKey, e.toString());
         }
       }
@@ -91,6 +124,8 @@ public class HooksFactory {
         } catch (Exception e) {
           e.printStackTrace();
 
+          plan.onFailure();
+
           log.error("Unable to apply global hook script {}: {}", hookKey, e.toString());
         }
       }
@@ -102,4 +137,35 @@ public class HooksFactory {
         created,
         deleted);
   }
+
+  /**
+   * Remembers hooks of a repository until its project is applied, the factory applies every
+   * repository of a project before the project itself.
+   *
+   * @return hooks of repositories of the project if the scope is a project whose repositories were
+   *     applied by this copy of the factory
+   */
+  private ProjectHooks getProjectHooks(Scope scope, Page<RepositoryHook> page) {
+    if (projects == null) {
+      return null;
+    }
+
+    if (scope.getType() == ScopeType.REPOSITORY) {
+      RepositoryScope repositoryScope = (RepositoryScope) scope;
+      // personal projects are never applied as a whole
+      if (repositoryScope.getProject().getType() != ProjectType.PERSONAL) {
+        projects
+            .computeIfAbsent(repositoryScope.getProject().getId(), id -> new ProjectHooks())
+            .add(repositoryScope, page.getValues());
+      }
+
+      return null;
+    }
+
+    if (scope.getType() == ScopeType.PROJECT) {
+      return projects.remove(((ProjectScope) scope).getProject().getId());
+    }
+
+    return null;
+  }
 }
@@ -0,0 +1,362 @@
+package com.ngs.stash.externalhooks;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.project.Project;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scope.ProjectScope;
+import com.atlassian.bitbucket.scope.RepositoryScope;
+import com.atlassian.bitbucket.scope.Scope;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.ngs.stash.externalhooks.util.Throttle;
+import com.ngs.stash.externalhooks.util.Walker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs {@link HooksFactory} on every project and repository using a pool of workers.
+ *
+ * <p>Work is partitioned by project (and by repository for personal ones): one worker applies
+ * hook scripts on all repositories of a project and then on the project itself, in the same order
+ * as the serial walk does. Project-wide, repository-wide and global hook scripts of the same
+ * repository are therefore never touched by two workers at once.
+ *
+ * <p>Projects and repositories are streamed by the {@link Walker} with the given page size, the
+ * next page is fetched while the current one is processed. The instance is walked only once, so
+ * the total amount of scopes reported by {@link FactoryProgress} is refined as the walk goes.
+ *
+ * <p>All workers share one {@link Throttle}, so the load put on the database depends on the
+ * throttle only and not on the amount of workers. The throttle also observes latency of Bitbucket
+ * services and might adapt its rate to it.
+ *
+ * <p>Every run reconciles hook scripts against the given {@link ReconcilePlan}: only differences
+ * are written and, once the whole instance is walked, hook scripts not referenced by any scope are
+ * deleted.
+ *
+ * <p>A run can be paused or cancelled by its {@link Listener} and resumed later from a {@link
+ * FactoryCursor}: the listener receives the cursor every time all partitions before it are done.
+ *
+ * <p>A run might be limited to a {@link FactoryShard} of the instance, so shards can be applied by
+ * different nodes at once. Resumed runs and runs of a single shard don't look for orphaned hook
+ * scripts since they don't see the whole instance.
+ */
+public class HooksFactoryEngine {
+  private static Logger log = LoggerFactory.getLogger(HooksFactoryEngine.class);
+
+  private HooksFactory hooksFactory;
+  private Walker walker;
+  private HookScriptInventory inventory;
+  private SecurityService securityService;
+
+  public HooksFactoryEngine(
+      HooksFactory hooksFactory,
+      Walker walker,
+      HookScriptInventory inventory,
+      SecurityService securityService) {
+    this.hooksFactory = hooksFactory;
+    this.walker = walker;
+    this.inventory = inventory;
+    this.securityService = securityService;
+  }
+
+  public void run(
+      ReconcilePlan plan,
+      FactoryCursor cursor,
+      FactoryShard shard,
+      GlobalHooks globalHooks,
+      int workers,
+      int pageSize,
+      Throttle throttle,
+      Listener listener) {
+    Run run = new Run(plan, globalHooks, workers, pageSize, throttle, listener);
+
+    log.info(
+        "Applying hook scripts on shard {} using {} workers and page size {} from {} (dry_run={})",
+        shard,
+        workers,
+        pageSize,
+        cursor,
+        plan.isDryRun());
+
+    try {
+      if (cursor.getPhase() == FactoryCursor.Phase.PROJECTS) {
+        run.walk(
+            FactoryCursor.Phase.PROJECTS,
+            cursor,
+            () -> run.walker.streamProjects().filter(project -> shard.contains(project.getId())),
+            (project) -> project.getId(),
+            (project) -> run.applyProject(project));
+      }
+
+      // personal repositories have no project-wide hook scripts, so each of
+      // them is a partition on its own
+      run.walk(
+          FactoryCursor.Phase.PERSONAL,
+          cursor,
+          () -> run.walker
+              .streamPersonalRepositories()
+              .filter(repository -> shard.contains(repository.getId())),
+          (repository) -> repository.getId(),
+          (repository) -> run.applyPersonalRepository(repository));
+
+      run.progress.onDiscovered();
+    } finally {
+      run.shutdown();
+    }
+
+    if (Thread.currentThread().isInterrupted()) {
+      log.warn("Applying hook scripts has been interrupted: {}", plan);
+      return;
+    }
+
+    if (listener.isCancelled()) {
+      log.warn("Applying hook scripts has been cancelled: {}", plan);
+      return;
+    }
+
+    if (!cursor.isStart()) {
+      log.info("Not looking for orphaned hook scripts because the run has been resumed");
+    } else if (!shard.isWhole()) {
+      log.debug("Not looking for orphaned hook scripts on shard {}", shard);
+    } else {
+      inventory.sweep(plan);
+    }
+
+    log.info("Applied hook scripts: {}", plan);
+  }
+
+  /** State of a single run shared by all of its workers. */
+  private class Run {
+    private final ReconcilePlan plan;
+    private final GlobalHooks globalHooks;
+    private final Throttle throttle;
+    private final Listener listener;
+
+    private final HooksFactory hooksFactory;
+    private final Walker walker;
+    private final FactoryProgress progress = new FactoryProgress();
+    private final Checkpoints checkpoints = new Checkpoints();
+
+    private final ExecutorService executor;
+
+    // bounds amount of partitions waiting for a worker, otherwise the walker
+    // would enqueue the whole instance before the first worker is done
+    private final Semaphore pending;
+
+    Run(
+        ReconcilePlan plan,
+        GlobalHooks globalHooks,
+        int workers,
+        int pageSize,
+        Throttle throttle,
+        Listener listener) {
+      this.plan = plan;
+      this.globalHooks = globalHooks;
+      this.throttle = throttle;
+      this.listener = listener;
+
+      this.hooksFactory = HooksFactoryEngine.this.hooksFactory.withPlan(plan, throttle);
+      this.walker = HooksFactoryEngine.this.walker.withPageSize(pageSize);
+
+      AtomicInteger threads = new AtomicInteger();
+      this.executor = Executors.newFixedThreadPool(workers, (runnable) -> {
+        Thread thread =
+            new Thread(runnable, "external-hooks-factory-" + threads.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+
+      this.pending = new Semaphore(workers * 2);
+    }
+
+    /**
+     * Submits every item of the phase as a partition, skipping the ones which are already done
+     * according to the cursor.
+     */
+    <T> void walk(
+        FactoryCursor.Phase phase,
+        FactoryCursor cursor,
+        Supplier<Stream<T>> stream,
+        ToIntFunction<T> id,
+        Consumer<T> partition) {
+      int position = cursor.getPhase() == phase ? cursor.getPosition() : 0;
+      if (position > 0 && !isValid(stream, id, cursor)) {
+        log.warn(
+            "Cursor {} doesn't match {} anymore, walking them from the beginning",
+            cursor,
+            phase.getId());
+        position = 0;
+      }
+
+      Iterator<T> items = stream.get().skip(position).iterator();
+      while (items.hasNext() && awaitRunning()) {
+        T item = items.next();
+        position++;
+
+        if (phase == FactoryCursor.Phase.PROJECTS) {
+          progress.onProject();
+        } else {
+          progress.onPersonalRepository();
+        }
+
+        long sequence = checkpoints.add(new FactoryCursor(phase, position, id.applyAsInt(item)));
+
+        submit(sequence, () -> partition.accept(item));
+      }
+    }
+
+    private <T> boolean isValid(
+        Supplier<Stream<T>> stream, ToIntFunction<T> id, FactoryCursor cursor) {
+      return stream.get()
+          .skip(cursor.getPosition() - 1)
+          .findFirst()
+          .map(item -> id.applyAsInt(item) == cursor.getId())
+          .orElse(false);
+    }
+
+    void applyProject(Project project) {
+      AtomicInteger repositories = new AtomicInteger();
+      walker.streamRepositories(project).forEach(repository -> {
+        repositories.incrementAndGet();
+        apply(new RepositoryScope(repository));
+      });
+
+      progress.onProjectWalked(repositories.get());
+
+      apply(new ProjectScope(project));
+    }
+
+    void applyPersonalRepository(Repository repository) {
+      apply(new RepositoryScope(repository));
+    }
+
+    private void apply(Scope scope) {
+      if (!awaitRunning()) {
+        throw new CancellationException();
+      }
+
+      throttle.acquire();
+
+      hooksFactory.apply(scope, globalHooks);
+
+      progress.onApplied();
+
+      listener.onScope(scope, progress);
+    }
+
+    /** @return false if the run is cancelled or interrupted */
+    private boolean awaitRunning() {
+      while (listener.isPaused() && !listener.isCancelled()) {
+        try {
+          TimeUnit.SECONDS.sleep(1);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+
+      return !listener.isCancelled() && !Thread.currentThread().isInterrupted();
+    }
+
+    private void submit(long sequence, Runnable partition) {
+      pending.acquireUninterruptibly();
+
+      executor.execute(() -> {
+        try {
+          securityService
+              .withPermission(Permission.SYS_ADMIN, "External Hooks Factory: apply hook scripts")
+              .call(() -> {
+                partition.run();
+                return null;
+              });
+
+          FactoryCursor cursor = checkpoints.done(sequence);
+          if (cursor != null) {
+            listener.onCheckpoint(cursor);
+          }
+        } catch (CancellationException e) {
+          // the partition will be applied again when the run is resumed
+        } catch (Exception e) {
+          plan.onFailure();
+
+          log.error("Unable to apply hook scripts on partition", e);
+        } finally {
+          pending.release();
+        }
+      });
+    }
+
+    void shutdown() {
+      executor.shutdown();
+
+      try {
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+          log.debug("Waiting for factory workers to finish");
+        }
+      } catch (InterruptedException e) {
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Tracks partitions which are done in order to find a cursor such that every partition before it
+   * is done. Failed and cancelled partitions are never done, so a resumed run starts from them.
+   */
+  private static class Checkpoints {
+    private final Map<Long, FactoryCursor> pending = new HashMap<>();
+    private final Map<Long, FactoryCursor> done = new HashMap<>();
+    private long next;
+    private long watermark;
+
+    synchronized long add(FactoryCursor cursor) {
+      pending.put(next, cursor);
+      return next++;
+    }
+
+    /** @return cursor which can be resumed from now or null if it didn't move */
+    synchronized FactoryCursor done(long sequence) {
+      done.put(sequence, pending.remove(sequence));
+
+      FactoryCursor cursor = null;
+      while (done.containsKey(watermark)) {
+        cursor = done.remove(watermark);
+        watermark++;
+      }
+
+      return cursor;
+    }
+  }
+
+  public interface Listener {
+    void onScope(Scope scope, FactoryProgress progress);
+
+    /** Called when every partition before the given cursor is done. */
+    default void onCheckpoint(FactoryCursor cursor) {
+      //
+    }
+
+    default boolean isPaused() {
+      return false;
+    }
+
+    default boolean isCancelled() {
+      return false;
+    }
+  }
+}
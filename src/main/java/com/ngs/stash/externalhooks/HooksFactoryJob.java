@@ -0,0 +1,639 @@
+package com.ngs.stash.externalhooks;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
+import com.atlassian.bitbucket.cluster.ClusterService;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.scheduler.JobRunner;
+import com.atlassian.scheduler.JobRunnerRequest;
+import com.atlassian.scheduler.JobRunnerResponse;
+import com.atlassian.scheduler.SchedulerService;
+import com.atlassian.scheduler.SchedulerServiceException;
+import com.atlassian.scheduler.config.JobConfig;
+import com.atlassian.scheduler.config.JobId;
+import com.atlassian.scheduler.config.JobRunnerKey;
+import com.atlassian.scheduler.config.RunMode;
+import com.atlassian.scheduler.config.Schedule;
+import com.ngs.stash.externalhooks.ao.FactoryState;
+import com.ngs.stash.externalhooks.dao.ExternalHooksSettingsDao;
+import com.ngs.stash.externalhooks.dao.FactoryStateDao;
+import com.ngs.stash.externalhooks.dao.GlobalHookSettingsDao;
+import com.ngs.stash.externalhooks.util.AdaptiveThrottle;
+import com.ngs.stash.externalhooks.util.Throttle;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scheduled factory runs which apply (or plan) hook scripts on the whole instance and are tracked
+ * by {@link FactoryState}.
+ *
+ * <p>Every run is split into a {@link FactoryShard} per node of the cluster. Each shard has its
+ * own state and is scheduled as its own job, so any node can pick it up; a node runs only one
+ * shard of a run at once and postpones the others, leaving them to idle nodes. Progress of shards
+ * is rolled up into the state of the run. Once the last shard is finished, orphaned hook scripts
+ * are looked up by the hook script mappings.
+ *
+ * <p>Shards checkpoint their cursor, so a shard whose node is gone is resumed by the recovery job
+ * on any other node. Runs can be paused, resumed and cancelled from any node as well. Applying
+ * settings while another run is in progress doesn't start a new run: the current one is repeated
+ * once it's finished instead.
+ */
+public class HooksFactoryJob implements JobRunner {
+  private static Logger log = LoggerFactory.getLogger(HooksFactoryJob.class);
+
+  private static final JobRunnerKey RUNNER = JobRunnerKey.of("external-hooks-factory-runner");
+
+  // every shard has its own job, so they are picked up by different nodes
+  private static final String SHARD_JOB = "external-hooks-factory-job-";
+  private static final String FINISH_JOB = "external-hooks-factory-finish-job-";
+  private static final JobId RECOVERY_JOB = JobId.of("external-hooks-factory-recovery-job");
+
+  // nodes look up the run in progress and start a new one under this lock,
+  // so settings applied on several nodes at once end up in a single run
+  private static final String APPLY_LOCK = Const.PLUGIN_KEY + ":factory:apply";
+
+  private static final long RECOVERY_INTERVAL_MILLIS = 60 * 1000L;
+
+  // the heartbeat is updated every second while the shard is alive, paused
+  // shards included, so a shard without heartbeat for that long is gone
+  private static final long STALE_MILLIS = 5 * 60 * 1000L;
+
+  // delay before a shard picked up by a node which is busy with another
+  // shard of the same run is offered to the cluster again
+  private static final long POSTPONE_MILLIS = 5 * 1000L;
+
+  private SchedulerService schedulerService;
+  private SecurityService securityService;
+  private ClusterService clusterService;
+  private ClusterLockService clusterLockService;
+  private HooksFactoryEngine hooksFactoryEngine;
+  private HookScriptInventory inventory;
+  private ExternalHooksSettingsDao settingsDao;
+  private GlobalHookSettingsDao globalHookSettingsDao;
+  private FactoryStateDao factoryStateDao;
+  private FactoryFingerprint fingerprint;
+
+  private Map<Integer, FactoryStateWriter> writers = new ConcurrentHashMap<>();
+
+  // runs which have a shard in progress on this node
+  private Set<Integer> running = ConcurrentHashMap.newKeySet();
+
+  public HooksFactoryJob(
+      SchedulerService schedulerService,
+      SecurityService securityService,
+      ClusterService clusterService,
+      ClusterLockService clusterLockService,
+      HooksFactoryEngine hooksFactoryEngine,
+      HookScriptInventory inventory,
+      ExternalHooksSettingsDao settingsDao,
+      GlobalHookSettingsDao globalHookSettingsDao,
+      FactoryStateDao factoryStateDao,
+      FactoryFingerprint fingerprint) {
+    this.schedulerService = schedulerService;
+    this.securityService = securityService;
+    this.clusterService = clusterService;
+    this.clusterLockService = clusterLockService;
+    this.hooksFactoryEngine = hooksFactoryEngine;
+    this.inventory = inventory;
+    this.settingsDao = settingsDao;
+    this.globalHookSettingsDao = globalHookSettingsDao;
+    this.factoryStateDao = factoryStateDao;
+    this.fingerprint = fingerprint;
+  }
+
+  /** Registers the job runner on this node and schedules the recovery job. */
+  public void register() {
+    schedulerService.registerJobRunner(RUNNER, this);
+
+    Map<String, Serializable> parameters = new HashMap<String, Serializable>();
+    parameters.put("recovery", true);
+
+    JobConfig job = JobConfig.forJobRunnerKey(RUNNER)
+        .withSchedule(Schedule.forInterval(
+            RECOVERY_INTERVAL_MILLIS,
+            new Date(System.currentTimeMillis() + RECOVERY_INTERVAL_MILLIS)))
+        .withRunMode(RunMode.RUN_ONCE_PER_CLUSTER)
+        .withParameters(parameters);
+
+    try {
+      schedulerService.scheduleJob(RECOVERY_JOB, job);
+    } catch (SchedulerServiceException e) {
+      log.error("Unable to schedule recovery of factory runs", e);
+    }
+  }
+
+  /**
+   * Starts applying hook scripts or merges the request into the run which is already in progress.
+   */
+  public FactoryState apply() {
+    ClusterLock lock = clusterLockService.getLockForName(APPLY_LOCK);
+    lock.lock();
+    try {
+      for (FactoryState state : factoryStateDao.findUnfinished()) {
+        if (isShard(state) || state.getDryRun() || state.getHeartbeat() == null) {
+          continue;
+        }
+
+        if (FactoryStatus.fromId(state.getStatus()) == FactoryStatus.CANCELLED) {
+          continue;
+        }
+
+        state.setRerun(true);
+        state.save();
+
+        log.info("Applying hook scripts is merged into factory run {}", state.getID());
+
+        return state;
+      }
+
+      return start(false);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Starts computing which hook scripts would be created, updated or deleted. */
+  public FactoryState plan() {
+    return start(true);
+  }
+
+  public FactoryState pause(int id) {
+    return setStatus(id, FactoryStatus.PAUSED);
+  }
+
+  public FactoryState cancel(int id) {
+    return setStatus(id, FactoryStatus.CANCELLED);
+  }
+
+  public FactoryState resume(int id) {
+    FactoryState state = setStatus(id, FactoryStatus.RUNNING);
+    if (state == null || state.getFinished()) {
+      return state;
+    }
+
+    FactoryState[] shards = isShard(state) ? new FactoryState[] {state} : getShards(state);
+    for (FactoryState shard : shards) {
+      if (!shard.getFinished() && isStale(shard)) {
+        // the node which was running it is gone, nobody would pick it up
+        schedule(shard, 0);
+      }
+    }
+
+    return getState(id);
+  }
+
+  /**
+   * Returns the state with live progress if the shard is in progress on this node or progress
+   * rolled up from all shards if the state is a run.
+   */
+  public FactoryState getState(int id) {
+    FactoryStateWriter writer = writers.get(id);
+    if (writer != null) {
+      return writer.getState();
+    }
+
+    FactoryState state = factoryStateDao.find(id);
+    if (state == null || state.getFinished() || isShard(state) || state.getShards() == 0) {
+      return state;
+    }
+
+    return rollUp(state);
+  }
+
+  private FactoryState start(boolean dryRun) {
+    FactoryState state = factoryStateDao.create();
+    state.setDryRun(dryRun);
+    state.setStatus(FactoryStatus.RUNNING.getId());
+    state.setShards(getShardsCount());
+    state.setHeartbeat(new Date());
+    if (!dryRun) {
+      // inputs might change while the run is in progress, then the next
+      // startup will apply hook scripts again
+      state.setFingerprint(fingerprint.compute());
+    }
+    state.save();
+
+    startShards(state);
+
+    return state;
+  }
+
+  private int getShardsCount() {
+    return Math.max(1, clusterService.getInformation().getNodes().size());
+  }
+
+  private void startShards(FactoryState state) {
+    for (int index = 0; index < state.getShards(); index++) {
+      FactoryState shard = factoryStateDao.create();
+      shard.setParentId(state.getID());
+      shard.setShard(index);
+      shard.setShards(state.getShards());
+      shard.setDryRun(state.getDryRun());
+      shard.setStatus(FactoryStatus.RUNNING.getId());
+      shard.setHeartbeat(new Date());
+      shard.save();
+
+      schedule(shard, 0);
+    }
+
+    log.info("Factory run {} is split into {} shards", state.getID(), state.getShards());
+  }
+
+  private boolean isShard(FactoryState state) {
+    return state.getParentId() != 0;
+  }
+
+  private FactoryState[] getShards(FactoryState state) {
+    return factoryStateDao.findShards(state.getID());
+  }
+
+  /** Sums progress of shards into the given state of the run without saving it. */
+  private FactoryState rollUp(FactoryState state) {
+    FactoryState[] shards = getShards(state);
+
+    boolean started = false;
+    boolean estimated = shards.length < state.getShards();
+    int eta = 0;
+    int rate = 0;
+    int current = 0;
+    int total = 0;
+    int created = 0;
+    int updated = 0;
+    int deleted = state.getOrphans();
+    int unchanged = 0;
+    int failed = 0;
+
+    for (FactoryState stored : shards) {
+      FactoryStateWriter writer = writers.get(stored.getID());
+      FactoryState shard = writer != null ? writer.getState() : stored;
+
+      started |= shard.getStarted();
+      current += shard.getCurrent();
+      total += shard.getTotal();
+      created += shard.getCreated();
+      updated += shard.getUpdated();
+      deleted += shard.getDeleted();
+      unchanged += shard.getUnchanged();
+      failed += shard.getFailed();
+
+      if (shard.getFinished()) {
+        continue;
+      }
+
+      rate += shard.getRate();
+
+      // shards run at once, so the slowest of them is the one to wait for
+      if (!shard.getStarted() || shard.getEta() < 0) {
+        estimated = true;
+        eta = -1;
+      } else {
+        estimated |= shard.getTotalEstimated();
+        eta = eta < 0 ? eta : Math.max(eta, shard.getEta());
+      }
+    }
+
+    state.setStarted(started);
+    state.setTotalEstimated(estimated);
+    state.setEta(eta);
+    state.setRate(rate);
+    state.setCurrent(current);
+    state.setTotal(total);
+    state.setCreated(created);
+    state.setUpdated(updated);
+    state.setDeleted(deleted);
+    state.setUnchanged(unchanged);
+    state.setFailed(failed);
+
+    return state;
+  }
+
+  private FactoryState setStatus(int id, FactoryStatus status) {
+    FactoryState state = factoryStateDao.find(id);
+    if (state == null || state.getFinished()) {
+      return state;
+    }
+
+    state.setStatus(status.getId());
+    state.save();
+
+    if (!isShard(state)) {
+      // shards read their own status while flushing progress
+      for (FactoryState shard : getShards(state)) {
+        if (!shard.getFinished()) {
+          shard.setStatus(status.getId());
+          shard.save();
+        }
+      }
+    }
+
+    log.info("Factory run {} is {}", id, status.getId());
+
+    return isShard(state) || state.getShards() == 0 ? state : rollUp(state);
+  }
+
+  private void schedule(FactoryState shard, long delayMillis) {
+    schedule(JobId.of(SHARD_JOB + shard.getID()), shard.getID(), false, delayMillis);
+  }
+
+  private void scheduleFinish(int id) {
+    // every shard schedules the same job once it's finished, so the last
+    // one replaces the others and the run is finished only once
+    schedule(JobId.of(FINISH_JOB + id), id, true, 0);
+  }
+
+  private void schedule(JobId jobId, int stateId, boolean finish, long delayMillis) {
+    Map<String, Serializable> parameters = new HashMap<String, Serializable>();
+    parameters.put("state_id", stateId);
+    if (finish) {
+      parameters.put("finish", true);
+    }
+
+    JobConfig job = JobConfig.forJobRunnerKey(RUNNER)
+        .withSchedule(Schedule.runOnce(new Date(System.currentTimeMillis() + delayMillis)))
+        .withRunMode(RunMode.RUN_ONCE_PER_CLUSTER)
+        .withParameters(parameters);
+
+    try {
+      schedulerService.scheduleJob(jobId, job);
+    } catch (SchedulerServiceException e) {
+      log.error("Unable to schedule re-creating External Hooks", e);
+    }
+  }
+
+  @Override
+  public JobRunnerResponse runJob(JobRunnerRequest request) {
+    Map<String, Serializable> parameters = request.getJobConfig().getParameters();
+    if (parameters.containsKey("recovery")) {
+      recover();
+      return JobRunnerResponse.success();
+    }
+
+    int stateId = (int) parameters.get("state_id");
+
+    FactoryState state = factoryStateDao.find(Integer.valueOf(stateId));
+    if (state == null) {
+      log.error("scheduled factory state not found: {}", stateId);
+      return JobRunnerResponse.failed("scheduled factory state not found");
+    }
+
+    boolean finish = parameters.containsKey("finish");
+
+    securityService
+        .withPermission(Permission.SYS_ADMIN, "External Hook Factory: create hooks")
+        .call(() -> {
+          if (finish) {
+            finish(state);
+          } else {
+            run(state);
+          }
+          return null;
+        });
+
+    return JobRunnerResponse.success();
+  }
+
+  private void recover() {
+    for (FactoryState state : factoryStateDao.findUnfinished()) {
+      // states without heartbeat are left by versions which could not resume
+      if (state.getHeartbeat() == null || !isStale(state)) {
+        continue;
+      }
+
+      if (!isShard(state)) {
+        // the node which was finishing the run is gone
+        if (state.getShards() > 0 && isFinished(getShards(state))) {
+          scheduleFinish(state.getID());
+        }
+
+        continue;
+      }
+
+      // a shard which never started was scheduled on a node which is gone
+      // before picking it up, so it's started again the same way
+      log.warn(
+          "Factory shard {} has no heartbeat since {}, {} it",
+          state.getID(),
+          state.getHeartbeat(),
+          state.getStarted() ? "resuming" : "starting");
+
+      state.setHeartbeat(new Date());
+      state.save();
+
+      schedule(state, 0);
+    }
+  }
+
+  private boolean isStale(FactoryState state) {
+    Date heartbeat = state.getHeartbeat();
+    return heartbeat == null || System.currentTimeMillis() - heartbeat.getTime() > STALE_MILLIS;
+  }
+
+  private boolean isFinished(FactoryState[] shards) {
+    for (FactoryState shard : shards) {
+      if (!shard.getFinished()) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private void run(FactoryState state) {
+    if (state.getFinished() || !isShard(state)) {
+      return;
+    }
+
+    if (!running.add(state.getParentId())) {
+      log.debug(
+          "Postponing factory shard {}, another shard of run {} is in progress on this node",
+          state.getID(),
+          state.getParentId());
+
+      schedule(state, POSTPONE_MILLIS);
+      return;
+    }
+
+    try {
+      runShard(state);
+    } finally {
+      running.remove(state.getParentId());
+    }
+  }
+
+  private void runShard(FactoryState state) {
+    FactoryShard shard = new FactoryShard(state.getShard(), state.getShards());
+
+    FactoryCursor cursor = FactoryCursor.START;
+    if (state.getStarted()) {
+      FactoryCursor.Phase phase = FactoryCursor.Phase.fromId(state.getPhase());
+      cursor = new FactoryCursor(
+          phase,
+          state.getPosition(),
+          phase == FactoryCursor.Phase.PROJECTS
+              ? state.getLastProjectId()
+              : state.getLastRepositoryId());
+    } else {
+      state.setStartedAt(new Date());
+    }
+
+    GlobalHooks globalHooks = globalHookSettingsDao.getGlobalHooks();
+    state.setStarted(true);
+    state.setHeartbeat(new Date());
+    state.save();
+
+    // spreading the cpu/io load if bb instance has a lot of hooks installed;
+    // the rate is shared by all workers of the node and adapts to latency of
+    // bitbucket
+    Throttle throttle = new AdaptiveThrottle(
+        settingsDao.getFactoryRateMin(),
+        settingsDao.getFactoryRateMax(),
+        DefaultSettings.FactoryRateInitial);
+
+    ReconcilePlan plan = new ReconcilePlan(state.getDryRun(), state.getStartedAt());
+
+    FactoryStateWriter writer = new FactoryStateWriter(state, factoryStateDao, plan, throttle);
+    writers.put(state.getID(), writer);
+
+    boolean interrupted = false;
+    try {
+      hooksFactoryEngine.run(
+          plan,
+          cursor,
+          shard,
+          globalHooks,
+          settingsDao.getFactoryWorkers(),
+          settingsDao.getFactoryPageSize(),
+          throttle,
+          writer);
+    } finally {
+      // the node is shutting down, the shard will be resumed by another one
+      interrupted = Thread.currentThread().isInterrupted();
+
+      writer.finish(!interrupted);
+      writers.remove(state.getID());
+    }
+
+    if (!interrupted) {
+      scheduleFinish(state.getParentId());
+    }
+  }
+
+  /** Finishes the run once all of its shards are finished or repeats it if requested. */
+  private void finish(FactoryState state) {
+    if (state.getFinished()) {
+      return;
+    }
+
+    FactoryState[] shards = getShards(state);
+    if (!isFinished(shards)) {
+      // the last shard will schedule it again
+      return;
+    }
+
+    state.setHeartbeat(new Date());
+    state.save();
+
+    FactoryStatus status = FactoryStatus.fromId(state.getStatus());
+    if (shards.length > 1 && status != FactoryStatus.CANCELLED) {
+      sweep(state, shards);
+    }
+
+    if (state.getRerun() && status != FactoryStatus.CANCELLED) {
+      rerun(state, shards);
+      return;
+    }
+
+    rollUp(state);
+    state.setTotal(state.getCurrent());
+    state.setTotalEstimated(false);
+    state.setEta(0);
+    state.setRate(0);
+    state.setFinished(true);
+    state.save();
+
+    if (status != FactoryStatus.CANCELLED) {
+      record(state);
+    }
+
+    log.info("Factory run {} is finished", state.getID());
+  }
+
+  /** Records the fingerprint of the run, so hook scripts are not applied on startup again. */
+  private void record(FactoryState state) {
+    if (state.getDryRun() || state.getFingerprint() == null) {
+      return;
+    }
+
+    if (state.getFailed() > 0) {
+      log.warn(
+          "Not recording fingerprint of factory run {} because {} hook scripts failed to apply",
+          state.getID(),
+          state.getFailed());
+      return;
+    }
+
+    boolean scripts = state.getCreated() + state.getUpdated() + state.getUnchanged() > 0;
+
+    settingsDao.setFactoryFingerprint(state.getFingerprint(), scripts);
+  }
+
+  /**
+   * Deletes hook scripts which are not referenced by any hook script mapping once every shard of
+   * the run has brought mappings of its scopes up to date.
+   */
+  private void sweep(FactoryState state, FactoryState[] shards) {
+    Date startedAt = null;
+    for (FactoryState shard : shards) {
+      if (shard.getFailed() > 0) {
+        log.info(
+            "Not looking for orphaned hook scripts of run {} because shard {} failed",
+            state.getID(),
+            shard.getID());
+        return;
+      }
+
+      if (startedAt == null || shard.getStartedAt().before(startedAt)) {
+        startedAt = shard.getStartedAt();
+      }
+    }
+
+    ReconcilePlan plan = new ReconcilePlan(state.getDryRun(), startedAt);
+    inventory.sweep(plan);
+
+    state.setOrphans(plan.getDeleted());
+    state.save();
+  }
+
+  /** Repeats the run because settings were applied again while it was in progress. */
+  private void rerun(FactoryState state, FactoryState[] shards) {
+    factoryStateDao.delete(shards);
+
+    state.setRerun(false);
+    state.setStarted(false);
+    state.setCurrent(0);
+    state.setTotal(0);
+    state.setCreated(0);
+    state.setUpdated(0);
+    state.setDeleted(0);
+    state.setUnchanged(0);
+    state.setOrphans(0);
+    state.setFailed(0);
+    state.setFingerprint(fingerprint.compute());
+    state.setShards(getShardsCount());
+    state.setHeartbeat(new Date());
+    state.save();
+
+    log.info("Repeating factory run {} because settings were applied again", state.getID());
+
+    startShards(state);
+  }
+}
@@ -12,15 +12,19 @@ import java.security.Signature;
 import java.security.SignatureException;
 import java.security.interfaces.DSAPublicKey;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.TimeUnit;
 
 import com.atlassian.bitbucket.cluster.ClusterService;
 import com.atlassian.bitbucket.server.StorageService;
+import com.atlassian.event.api.EventListener;
 import com.atlassian.upm.api.license.PluginLicenseManager;
 import com.atlassian.upm.api.license.entity.PluginLicense;
+import com.atlassian.upm.api.license.event.PluginLicenseChangeEvent;
 import com.atlassian.upm.api.util.Option;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
+import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,6 +34,9 @@ public class LicenseValidator {
   private StorageService storageService;
   private ClusterService clusterService;
   private boolean licenseSignatureVerified = false;
+  private volatile State state;
+
+  private static final long STATE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
 
   private static final String PUBLIC_KEY = ""
       + "MIIDRjCCAjkGByqGSM44BAEwggIsAoIBAQCXNVVR/55M+fXGU6GmpW6RmSIIxi+V\n"
@@ -147,8 +154,8 @@ public class LicenseValidator {
     if (licenseSignatureVerified) {
       return true;
     }
-    Option<PluginLicense> licenseOption = pluginLicenseManager.getLicense();
-    return licenseOption.isDefined();
+
+    return getState().defined;
   }
 
   public boolean isValid() {
@@ -156,13 +163,65 @@ public class LicenseValidator {
       return true;
     }
 
+    return getState().valid;
+  }
+
+  @EventListener
+  public void onLicenseChanged(PluginLicenseChangeEvent event) {
+    if (!Const.PLUGIN_KEY.equals(event.getPluginKey())) {
+      return;
+    }
+
+    state = null;
+
+    log.info("license of {} changed: {}", Const.PLUGIN_KEY, event.getClass().getSimpleName());
+  }
+
+  /**
+   * Hooks check the license on every push and merge check, so the license is cached until it
+   * expires or is changed. The cache is dropped after a while anyway, since the license might be
+   * changed on another node of the cluster.
+   */
+  private State getState() {
+    State current = state;
+    if (current != null && System.currentTimeMillis() < current.expiresAt) {
+      return current;
+    }
+
+    current = loadState();
+    state = current;
+
+    return current;
+  }
+
+  private State loadState() {
+    long expiresAt = System.currentTimeMillis() + STATE_TTL_MILLIS;
+
     Option<PluginLicense> licenseOption = pluginLicenseManager.getLicense();
     if (!licenseOption.isDefined()) {
-      return false;
+      return new State(false, false, expiresAt);
     }
 
     PluginLicense pluginLicense = licenseOption.get();
-    return pluginLicense.isValid();
+
+    Option<DateTime> expiryDate = pluginLicense.getExpiryDate();
+    if (expiryDate.isDefined()) {
+      expiresAt = Math.min(expiresAt, expiryDate.get().getMillis());
+    }
+
+    return new State(true, pluginLicense.isValid(), expiresAt);
+  }
+
+  private static class State {
+    private final boolean defined;
+    private final boolean valid;
+    private final long expiresAt;
+
+    State(boolean defined, boolean valid, long expiresAt) {
+      this.defined = defined;
+      this.valid = valid;
+      this.expiresAt = expiresAt;
+    }
   }
 
   private class License {
@@ -0,0 +1,289 @@
+package com.ngs.stash.externalhooks;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.project.Project;
+import com.atlassian.bitbucket.scope.RepositoryScope;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.ngs.stash.externalhooks.ao.FanOutState;
+import com.ngs.stash.externalhooks.dao.FanOutStateDao;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies a change of a project hook on repositories of the project concurrently and in
+ * background, so a project with thousands of repositories doesn't keep the caller busy for
+ * minutes.
+ *
+ * <p>All changes share a single pool of threads and every change uses a bounded amount of them
+ * at once. Changes of the same project are queued one after another, so they are still applied
+ * in order.
+ *
+ * <p>Progress of every change is stored as {@link FanOutState}, so it can be reported by any node
+ * while the change is applied. A change left unfinished by a node which is gone is repaired by the
+ * next factory run.
+ */
+public class ProjectFanOut {
+  private static Logger log = LoggerFactory.getLogger(ProjectFanOut.class);
+
+  private static final int THREADS = 8;
+
+  private static final int PARALLELISM = 4;
+
+  private static final int HISTORY = 32;
+
+  private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+  private static final long RETENTION_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+  private final SecurityService securityService;
+  private final FanOutStateDao fanOutStateDao;
+  private final ExecutorService executor;
+
+  // the last change queued for every project, guarded by itself
+  private final Map<String, CompletableFuture<Void>> queues = new HashMap<>();
+
+  public ProjectFanOut(SecurityService securityService, FanOutStateDao fanOutStateDao) {
+    this.securityService = securityService;
+    this.fanOutStateDao = fanOutStateDao;
+
+    AtomicInteger threads = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(THREADS, (runnable) -> {
+      Thread thread = new Thread(runnable, "external-hooks-fanout-" + threads.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Queues the work on every repository and returns immediately.
+   *
+   * @param then runs once the work is done on every repository, unless it failed on some of them
+   * @return id of the {@link FanOutState} which tracks the change
+   */
+  public int run(
+      String name,
+      Project project,
+      List<RepositoryScope> repositories,
+      Consumer<RepositoryScope> work,
+      Runnable then) {
+    fanOutStateDao.deleteFinishedBefore(
+        new Date(System.currentTimeMillis() - RETENTION_MILLIS));
+
+    FanOutState state = fanOutStateDao.create(name, project.getKey(), repositories.size());
+    Task task = new Task(state.getID(), name, project.getKey(), repositories.size());
+
+    log.debug(
+        "{} on {} repositories of project {} is queued as {}",
+        name,
+        repositories.size(),
+        project.getKey(),
+        task.id);
+
+    synchronized (queues) {
+      CompletableFuture<Void> previous = queues.getOrDefault(project.getKey(), DONE);
+      CompletableFuture<Void> done = previous
+          .exceptionally((error) -> null)
+          .thenCompose((ignored) -> start(task, repositories, work, then));
+
+      queues.put(project.getKey(), done);
+      done.whenComplete((result, error) -> {
+        synchronized (queues) {
+          queues.remove(project.getKey(), done);
+        }
+      });
+    }
+
+    return task.id;
+  }
+
+  private CompletableFuture<Void> start(
+      Task task,
+      List<RepositoryScope> repositories,
+      Consumer<RepositoryScope> work,
+      Runnable then) {
+    Queue<RepositoryScope> queue = new ConcurrentLinkedQueue<>(repositories);
+    int workers = Math.min(PARALLELISM, repositories.size());
+    if (workers == 0) {
+      finish(task, then);
+      return DONE;
+    }
+
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    AtomicInteger active = new AtomicInteger(workers);
+    Runnable worker = () -> {
+      try {
+        RepositoryScope repository;
+        while (!Thread.currentThread().isInterrupted() && (repository = queue.poll()) != null) {
+          apply(task, repository, work);
+        }
+      } finally {
+        if (active.decrementAndGet() == 0) {
+          try {
+            finish(task, then);
+          } finally {
+            done.complete(null);
+          }
+        }
+      }
+    };
+
+    for (int index = 0; index < workers; index++) {
+      try {
+        executor.execute(worker);
+      } catch (RejectedExecutionException e) {
+        // the node is shutting down
+        log.warn("{} on project {} is not finished: {}", task.name, task.project, e.toString());
+        done.complete(null);
+        break;
+      }
+    }
+
+    return done;
+  }
+
+  private void apply(Task task, RepositoryScope repository, Consumer<RepositoryScope> work) {
+    try {
+      // the pool doesn't run as the user who caused the change
+      securityService
+          .withPermission(Permission.SYS_ADMIN, "atlassian-external-hooks: " + task.name)
+          .call(() -> {
+            work.accept(repository);
+            return null;
+          });
+    } catch (RuntimeException e) {
+      task.failed.incrementAndGet();
+
+      log.error(
+          "Unable to {} on repository {}/{}: {}",
+          task.name,
+          repository.getProject().getKey(),
+          repository.getRepository().getSlug(),
+          e.toString());
+    } finally {
+      task.current.incrementAndGet();
+      flush(task, false);
+    }
+  }
+
+  private void finish(Task task, Runnable then) {
+    if (!task.isDone()) {
+      // the node is shutting down, the change is left unfinished
+      log.warn(
+          "{} on project {} is interrupted: {}/{} done",
+          task.name,
+          task.project,
+          task.current.get(),
+          task.total);
+    } else if (task.failed.get() > 0) {
+      log.error(
+          "{} failed on {} repositories of project {}",
+          task.name,
+          task.failed.get(),
+          task.project);
+    } else if (then != null) {
+      try {
+        securityService
+            .withPermission(Permission.SYS_ADMIN, "atlassian-external-hooks: " + task.name)
+            .call(() -> {
+              then.run();
+              return null;
+            });
+      } catch (RuntimeException e) {
+        log.error("Unable to finish {} on project {}", task.name, task.project, e);
+      }
+    }
+
+    flush(task, true);
+
+    log.debug(
+        "{} on project {} done: {}/{} failed",
+        task.name,
+        task.project,
+        task.failed.get(),
+        task.current.get());
+  }
+
+  /** Stores progress of the task once per interval unless forced. */
+  private void flush(Task task, boolean force) {
+    synchronized (task) {
+      long now = System.currentTimeMillis();
+      if (!force && now - task.flushedAt < FLUSH_INTERVAL_MILLIS) {
+        return;
+      }
+
+      task.flushedAt = now;
+
+      try {
+        FanOutState state = fanOutStateDao.find(task.id);
+        if (state == null) {
+          return;
+        }
+
+        state.setCurrent(task.current.get());
+        state.setFailed(task.failed.get());
+        if (task.isDone()) {
+          state.setFinished(true);
+          state.setFinishedAt(new Date(now));
+        }
+        state.save();
+      } catch (RuntimeException e) {
+        log.warn("Unable to store progress of {} on project {}", task.name, task.project, e);
+      }
+    }
+  }
+
+  /** @return running and recently finished changes, the latest first */
+  public FanOutState[] getStates() {
+    return fanOutStateDao.findLatest(HISTORY);
+  }
+
+  /** @return the change or null if it's not known */
+  public FanOutState getState(int id) {
+    return fanOutStateDao.find(id);
+  }
+
+  public void stop() {
+    executor.shutdownNow();
+  }
+
+  /** Progress of a single change on this node. */
+  private static class Task {
+    private final int id;
+    private final String name;
+    private final String project;
+    private final int total;
+    private final AtomicInteger current = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    // guarded by the task
+    private long flushedAt;
+
+    Task(int id, String name, String project, int total) {
+      this.id = id;
+      this.name = name;
+      this.project = project;
+      this.total = total;
+    }
+
+    boolean isDone() {
+      return current.get() >= total;
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package com.ngs.stash.externalhooks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.atlassian.bitbucket.hook.repository.RepositoryHook;
+import com.atlassian.bitbucket.scope.RepositoryScope;
+
+/**
+ * Hooks of every repository of a project as they were found by the factory while applying hook
+ * scripts on repositories, so applying hook scripts on the project afterwards doesn't look up
+ * every hook of every repository again.
+ *
+ * <p>The factory applies a project and its repositories on a single thread, so the snapshot is
+ * not thread-safe.
+ */
+public class ProjectHooks {
+  private final List<RepositoryScope> repositories = new ArrayList<>();
+  private final Map<String, Map<Integer, RepositoryHook>> hooks = new HashMap<>();
+
+  /** Remembers hooks of the repository as they are returned by the search of its hooks. */
+  public void add(RepositoryScope scope, Iterable<RepositoryHook> repositoryHooks) {
+    repositories.add(scope);
+
+    for (RepositoryHook hook : repositoryHooks) {
+      String hookKey = hook.getDetails().getKey();
+      if (!hookKey.startsWith(Const.PLUGIN_KEY)) {
+        continue;
+      }
+
+      hooks.computeIfAbsent(hookKey, key -> new HashMap<>())
+          .put(scope.getRepository().getId(), hook);
+    }
+  }
+
+  /** @return repositories of the project in the order they were walked */
+  public List<RepositoryScope> getRepositories() {
+    return repositories;
+  }
+
+  /** @return the hook of the repository or null if it wasn't found by the search */
+  public RepositoryHook getHook(RepositoryScope scope, String hookKey) {
+    Map<Integer, RepositoryHook> byRepository = hooks.get(hookKey);
+    if (byRepository == null) {
+      return null;
+    }
+
+    return byRepository.get(scope.getRepository().getId());
+  }
+}
@@ -0,0 +1,112 @@
+package com.ngs.stash.externalhooks;
+
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Differences between the desired hook scripts (rendered content and triggers for every scope and
+ * hook) and the hook scripts which actually exist.
+ *
+ * <p>When the plan is a dry-run one, nothing is written and the plan only counts what would be
+ * created, updated or deleted.
+ */
+public class ReconcilePlan {
+  private final boolean dryRun;
+  private final Date startedAt;
+
+  private final AtomicInteger created = new AtomicInteger();
+  private final AtomicInteger updated = new AtomicInteger();
+  private final AtomicInteger deleted = new AtomicInteger();
+  private final AtomicInteger unchanged = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+
+  private final Set<Long> referenced = ConcurrentHashMap.newKeySet();
+  private final Set<Long> removed = ConcurrentHashMap.newKeySet();
+
+  public ReconcilePlan(boolean dryRun) {
+    this(dryRun, new Date());
+  }
+
+  /** Creates a plan which was started at the given time, e.g. by shards of a factory run. */
+  public ReconcilePlan(boolean dryRun, Date startedAt) {
+    this.dryRun = dryRun;
+    this.startedAt = startedAt;
+  }
+
+  public boolean isDryRun() {
+    return dryRun;
+  }
+
+  public Date getStartedAt() {
+    return startedAt;
+  }
+
+  public void onCreate() {
+    created.incrementAndGet();
+  }
+
+  public void onUpdate() {
+    updated.incrementAndGet();
+  }
+
+  public void onUnchanged() {
+    unchanged.incrementAndGet();
+  }
+
+  /** Marks the hook script as deleted, or as the one which would be deleted by a dry run. */
+  public void onDelete(long id) {
+    removed.add(id);
+    deleted.incrementAndGet();
+  }
+
+  public boolean isDeleted(long id) {
+    return removed.contains(id);
+  }
+
+  public void onFailure() {
+    failed.incrementAndGet();
+  }
+
+  /** Marks the hook script as the one which is desired for some scope. */
+  public void onReference(long id) {
+    referenced.add(id);
+  }
+
+  public boolean isReferenced(long id) {
+    return referenced.contains(id);
+  }
+
+  public int getCreated() {
+    return created.get();
+  }
+
+  public int getUpdated() {
+    return updated.get();
+  }
+
+  public int getDeleted() {
+    return deleted.get();
+  }
+
+  public int getUnchanged() {
+    return unchanged.get();
+  }
+
+  public int getFailed() {
+    return failed.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "created=%d updated=%d deleted=%d unchanged=%d failed=%d dry_run=%s",
+        getCreated(),
+        getUpdated(),
+        getDeleted(),
+        getUnchanged(),
+        getFailed(),
+        dryRun);
+  }
+}
@@ -1,11 +1,40 @@
 package com.ngs.stash.externalhooks.ao;
 
+import java.util.Date;
+
 import net.java.ao.Entity;
 import net.java.ao.Preload;
 import net.java.ao.schema.Table;
 
 @Table("factory_state")
-@Preload({"STARTED", "FINISHED", "CURRENT", "TOTAL"})
+@Preload({
+  "STARTED",
+  "FINISHED",
+  "CURRENT",
+  "TOTAL",
+  "DRY_RUN",
+  "CREATED",
+  "UPDATED",
+  "DELETED",
+  "UNCHANGED",
+  "TOTAL_ESTIMATED",
+  "ETA",
+  "RATE",
+  "STATUS",
+  "PHASE",
+  "POSITION",
+  "LAST_PROJECT_ID",
+  "LAST_REPOSITORY_ID",
+  "HEARTBEAT",
+  "RERUN",
+  "PARENT_ID",
+  "SHARD",
+  "SHARDS",
+  "STARTED_AT",
+  "ORPHANS",
+  "FAILED",
+  "FINGERPRINT"
+})
 public interface FactoryState extends Entity {
   boolean getStarted();
 
@@ -22,4 +51,111 @@ public interface FactoryState extends Entity {
   void setCurrent(int current);
 
   void setTotal(int total);
+
+  boolean getDryRun();
+
+  void setDryRun(boolean dryRun);
+
+  int getCreated();
+
+  void setCreated(int created);
+
+  int getUpdated();
+
+  void setUpdated(int updated);
+
+  int getDeleted();
+
+  void setDeleted(int deleted);
+
+  int getUnchanged();
+
+  void setUnchanged(int unchanged);
+
+  boolean getTotalEstimated();
+
+  void setTotalEstimated(boolean totalEstimated);
+
+  /** Seconds left until the run is finished or -1 if unknown. */
+  int getEta();
+
+  void setEta(int eta);
+
+  /** Scopes per second the run is currently throttled to. */
+  int getRate();
+
+  void setRate(int rate);
+
+  /** One of {@link com.ngs.stash.externalhooks.FactoryStatus} ids. */
+  String getStatus();
+
+  void setStatus(String status);
+
+  /** Cursor of the run, see {@link com.ngs.stash.externalhooks.FactoryCursor}. */
+  String getPhase();
+
+  void setPhase(String phase);
+
+  int getPosition();
+
+  void setPosition(int position);
+
+  int getLastProjectId();
+
+  void setLastProjectId(int lastProjectId);
+
+  int getLastRepositoryId();
+
+  void setLastRepositoryId(int lastRepositoryId);
+
+  /** Last time the node running the job saved the state. */
+  Date getHeartbeat();
+
+  void setHeartbeat(Date heartbeat);
+
+  /** Whether settings were applied again while the run was in progress. */
+  boolean getRerun();
+
+  void setRerun(boolean rerun);
+
+  /**
+   * Id of the run this state is a shard of or 0 if this state is a run itself. Progress of a run
+   * is rolled up from its shards.
+   */
+  int getParentId();
+
+  void setParentId(int parentId);
+
+  /** Index of the shard, see {@link com.ngs.stash.externalhooks.FactoryShard}. */
+  int getShard();
+
+  void setShard(int shard);
+
+  /** Amount of shards the run is split into. */
+  int getShards();
+
+  void setShards(int shards);
+
+  /** Time the shard was started at from the beginning. */
+  Date getStartedAt();
+
+  void setStartedAt(Date startedAt);
+
+  /** Amount of orphaned hook scripts deleted once all shards of the run were finished. */
+  int getOrphans();
+
+  void setOrphans(int orphans);
+
+  /** Amount of scopes and hook scripts which failed to apply. */
+  int getFailed();
+
+  void setFailed(int failed);
+
+  /**
+   * Fingerprint of inputs the run applies hook scripts with, see {@link
+   * com.ngs.stash.externalhooks.FactoryFingerprint}.
+   */
+  String getFingerprint();
+
+  void setFingerprint(String fingerprint);
 }
@@ -0,0 +1,50 @@
+package com.ngs.stash.externalhooks.ao;
+
+import java.util.Date;
+
+import net.java.ao.Entity;
+import net.java.ao.Preload;
+import net.java.ao.schema.Indexed;
+import net.java.ao.schema.Table;
+
+/**
+ * Progress of a change of a project hook which is applied on repositories of the project, see
+ * {@link com.ngs.stash.externalhooks.ProjectFanOut}.
+ */
+@Table("fan_out_state")
+@Preload
+public interface FanOutState extends Entity {
+  String getName();
+
+  void setName(String name);
+
+  /** Key of the project the change is applied on. */
+  String getProject();
+
+  void setProject(String project);
+
+  int getTotal();
+
+  void setTotal(int total);
+
+  int getCurrent();
+
+  void setCurrent(int current);
+
+  int getFailed();
+
+  void setFailed(int failed);
+
+  @Indexed
+  boolean getFinished();
+
+  void setFinished(boolean finished);
+
+  Date getStartedAt();
+
+  void setStartedAt(Date startedAt);
+
+  Date getFinishedAt();
+
+  void setFinishedAt(Date finishedAt);
+}
@@ -0,0 +1,74 @@
+package com.ngs.stash.externalhooks.ao;
+
+import net.java.ao.Entity;
+import net.java.ao.Preload;
+import net.java.ao.schema.Indexed;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.Table;
+import net.java.ao.schema.Unique;
+
+/**
+ * Hook script which is configured by a hook on a scope. Previous versions stored these mappings as
+ * plugin settings keyed by the hook and ids of the scopes.
+ */
+@Table("hook_script_map")
+@Preload
+public interface HookScriptMapping extends Entity {
+  /**
+   * The hook, the kind and ids of the scopes joined together. Active Objects can't declare a
+   * unique index over several columns, so a scope is kept unique by this one.
+   */
+  @NotNull
+  @Unique
+  String getScopeKey();
+
+  void setScopeKey(String scopeKey);
+
+  @Indexed
+  String getHookKey();
+
+  void setHookKey(String hookKey);
+
+  /** What the hook script is configured for, one of hook script index kinds. */
+  String getKind();
+
+  void setKind(String kind);
+
+  /** Project of the scope or 0 for the global scope, mappings are loaded by projects. */
+  @Indexed
+  int getProjectId();
+
+  void setProjectId(int projectId);
+
+  /** Type of the scope whose hook the hook script belongs to. */
+  String getParentType();
+
+  void setParentType(String parentType);
+
+  @Indexed
+  int getParentId();
+
+  void setParentId(int parentId);
+
+  /** Repository the hook script is configured on or 0 if it's configured on the whole scope. */
+  @Indexed
+  int getRepositoryId();
+
+  void setRepositoryId(int repositoryId);
+
+  @Indexed
+  long getScriptId();
+
+  void setScriptId(long scriptId);
+
+  /** Hash of the content and triggers the hook script was configured with. */
+  String getFingerprint();
+
+  void setFingerprint(String fingerprint);
+
+  /** Hash of the content if the hook script is shared by scopes with the same content. */
+  @Indexed
+  String getContentHash();
+
+  void setContentHash(String contentHash);
+}
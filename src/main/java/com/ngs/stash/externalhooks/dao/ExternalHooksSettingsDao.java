@@ -2,14 +2,21 @@ package com.ngs.stash.externalhooks.dao;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import com.atlassian.bitbucket.hook.repository.RepositoryHookTrigger;
 import com.atlassian.bitbucket.hook.repository.StandardRepositoryHookTrigger;
+import com.atlassian.bitbucket.util.PageRequest;
 import com.atlassian.sal.api.pluginsettings.PluginSettings;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.google.common.collect.ImmutableList;
 import com.ngs.stash.externalhooks.Const;
 import com.ngs.stash.externalhooks.DefaultSettings;
+import com.ngs.stash.externalhooks.ExternalHookSettingsFactory;
+import com.ngs.stash.externalhooks.ExternalHookSettingsScripts;
 import com.ngs.stash.externalhooks.ExternalHookSettingsTriggers;
 import com.ngs.stash.externalhooks.ExternalHooksSettings;
 
@@ -18,6 +25,10 @@ import org.slf4j.LoggerFactory;
 
 public class ExternalHooksSettingsDao {
   private static Logger log = LoggerFactory.getLogger(ExternalHooksSettingsDao.class);
+
+  private static final long TRIGGERS_CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private static volatile Triggers triggers;
   private PluginSettings pluginSettings;
 
   public ExternalHooksSettingsDao(PluginSettingsFactory pluginSettingsFactory) {
@@ -35,6 +46,13 @@ public class ExternalHooksSettingsDao {
     settings.triggers.post_receive = getIds(getPostReceiveHookTriggers());
     settings.triggers.merge_check = getIds(getMergeCheckHookTriggers());
 
+    settings.factory.workers = getFactoryWorkers();
+    settings.factory.pageSize = getFactoryPageSize();
+    settings.factory.rateMin = getFactoryRateMin();
+    settings.factory.rateMax = getFactoryRateMax();
+
+    settings.scripts.scoped = isScopedScripts();
+
     return settings;
   }
 
@@ -45,6 +63,13 @@ public class ExternalHooksSettingsDao {
     settings.triggers.post_receive = getIds(DefaultSettings.PostReceiveHookTriggers);
     settings.triggers.merge_check = getIds(DefaultSettings.MergeCheckHookTriggers);
 
+    settings.factory.workers = DefaultSettings.FactoryWorkers;
+    settings.factory.pageSize = DefaultSettings.FactoryPageSize;
+    settings.factory.rateMin = DefaultSettings.FactoryRateMin;
+    settings.factory.rateMax = DefaultSettings.FactoryRateMax;
+
+    settings.scripts.scoped = DefaultSettings.ScopedScripts;
+
     return settings;
   }
 
@@ -68,18 +93,255 @@ public class ExternalHooksSettingsDao {
           getPluginSettingsKey("merge_check"),
           sanitize(triggers.merge_check, DefaultSettings.MergeCheckHookTriggers));
     }
+
+    if (triggers.pre_receive != null
+        || triggers.post_receive != null
+        || triggers.merge_check != null) {
+      pluginSettings.put(
+          getPluginSettingsKey("triggers_version"), UUID.randomUUID().toString());
+      ExternalHooksSettingsDao.triggers = null;
+    }
+
+    ExternalHookSettingsFactory factory = settings.factory;
+    if (factory != null && factory.workers != null) {
+      pluginSettings.put(
+          getPluginSettingsKey("factory_workers"),
+          String.valueOf(sanitizeWorkers(factory.workers)));
+    }
+
+    if (factory != null && factory.pageSize != null) {
+      pluginSettings.put(
+          getPluginSettingsKey("factory_page_size"),
+          String.valueOf(sanitizePageSize(factory.pageSize)));
+    }
+
+    if (factory != null && factory.rateMin != null) {
+      pluginSettings.put(
+          getPluginSettingsKey("factory_rate_min"), String.valueOf(Math.max(1, factory.rateMin)));
+    }
+
+    if (factory != null && factory.rateMax != null) {
+      pluginSettings.put(
+          getPluginSettingsKey("factory_rate_max"), String.valueOf(Math.max(1, factory.rateMax)));
+    }
+
+    ExternalHookSettingsScripts scripts = settings.scripts;
+    if (scripts != null && scripts.scoped != null) {
+      pluginSettings.put(getPluginSettingsKey("scripts_scoped"), String.valueOf(scripts.scoped));
+    }
+  }
+
+  /**
+   * Whether hook scripts should be configured once on the project (or globally for global hooks)
+   * instead of on every repository.
+   */
+  public boolean isScopedScripts() {
+    Object raw = pluginSettings.get(getPluginSettingsKey("scripts_scoped"));
+    if (raw == null) {
+      return DefaultSettings.ScopedScripts;
+    }
+
+    return Boolean.parseBoolean(raw.toString());
+  }
+
+  public int getFactoryWorkers() {
+    Object raw = pluginSettings.get(getPluginSettingsKey("factory_workers"));
+    if (raw == null) {
+      return DefaultSettings.FactoryWorkers;
+    }
+
+    try {
+      return sanitizeWorkers(Integer.parseInt(raw.toString()));
+    } catch (NumberFormatException e) {
+      log.error("unrecognized amount of factory workers in settings: {}", raw);
+      return DefaultSettings.FactoryWorkers;
+    }
+  }
+
+  private int sanitizeWorkers(int workers) {
+    return Math.max(1, Math.min(workers, DefaultSettings.FactoryWorkersMax));
+  }
+
+  public int getFactoryPageSize() {
+    Object raw = pluginSettings.get(getPluginSettingsKey("factory_page_size"));
+    if (raw == null) {
+      return DefaultSettings.FactoryPageSize;
+    }
+
+    try {
+      return sanitizePageSize(Integer.parseInt(raw.toString()));
+    } catch (NumberFormatException e) {
+      log.error("unrecognized factory page size in settings: {}", raw);
+      return DefaultSettings.FactoryPageSize;
+    }
+  }
+
+  private int sanitizePageSize(int pageSize) {
+    return Math.max(1, Math.min(pageSize, PageRequest.MAX_PAGE_LIMIT));
+  }
+
+  /** Lowest amount of scopes per second the factory slows down to. */
+  public int getFactoryRateMin() {
+    return getFactoryRate("factory_rate_min", DefaultSettings.FactoryRateMin);
+  }
+
+  /** Highest amount of scopes per second the factory speeds up to. */
+  public int getFactoryRateMax() {
+    return Math.max(
+        getFactoryRateMin(), getFactoryRate("factory_rate_max", DefaultSettings.FactoryRateMax));
+  }
+
+  private int getFactoryRate(String component, int defaultRate) {
+    Object raw = pluginSettings.get(getPluginSettingsKey(component));
+    if (raw == null) {
+      return defaultRate;
+    }
+
+    try {
+      return Math.max(1, Integer.parseInt(raw.toString()));
+    } catch (NumberFormatException e) {
+      log.error("unrecognized factory rate in settings: {}", raw);
+      return defaultRate;
+    }
+  }
+
+  /**
+   * Fingerprint of inputs hook scripts were applied with by the last successful factory run, see
+   * {@link com.ngs.stash.externalhooks.FactoryFingerprint}. Not exposed as a setting.
+   */
+  public String getFactoryFingerprint() {
+    Object raw = pluginSettings.get(getPluginSettingsKey("factory_fingerprint"));
+    if (raw == null) {
+      return null;
+    }
+
+    return raw.toString();
+  }
+
+  /** @param scripts whether the run referenced any hook scripts */
+  public void setFactoryFingerprint(String fingerprint, boolean scripts) {
+    pluginSettings.put(getPluginSettingsKey("factory_fingerprint"), fingerprint);
+    pluginSettings.put(getPluginSettingsKey("factory_scripts"), String.valueOf(scripts));
+  }
+
+  /** Whether the run which recorded the fingerprint referenced any hook scripts. */
+  public boolean hasFactoryScripts() {
+    Object raw = pluginSettings.get(getPluginSettingsKey("factory_scripts"));
+    if (raw == null) {
+      return true;
+    }
+
+    return Boolean.parseBoolean(raw.toString());
+  }
+
+  /**
+   * Generation of hook state which is bumped every time hook scripts might be out of sync with the
+   * state of hooks, e.g. if they were not applied on an event.
+   */
+  public long getHookStateGeneration() {
+    Object raw = pluginSettings.get(getPluginSettingsKey("hook_state_generation"));
+    if (raw == null) {
+      return 0;
+    }
+
+    try {
+      return Long.parseLong(raw.toString());
+    } catch (NumberFormatException e) {
+      log.error("unrecognized hook state generation in settings: {}", raw);
+      return 0;
+    }
+  }
+
+  public void bumpHookStateGeneration() {
+    // not atomic across nodes, but two concurrent bumps still change the
+    // generation, which is all that is needed to notice the change
+    pluginSettings.put(
+        getPluginSettingsKey("hook_state_generation"),
+        String.valueOf(getHookStateGeneration() + 1));
+  }
+
+  /**
+   * Start of the page of hook scripts the next cycle of the collector continues from, see {@link
+   * com.ngs.stash.externalhooks.HookScriptCollector}. Not exposed as a setting.
+   */
+  public int getCollectorCursor() {
+    return (int) getLong("collector_cursor");
+  }
+
+  public void setCollectorCursor(int cursor) {
+    pluginSettings.put(getPluginSettingsKey("collector_cursor"), String.valueOf(cursor));
+  }
+
+  /** Amount of hook scripts reclaimed by the collector in total. */
+  public long getCollectorReclaimed() {
+    return getLong("collector_reclaimed");
+  }
+
+  public long getCollectorLastScanned() {
+    return getLong("collector_last_scanned");
+  }
+
+  public long getCollectorLastReclaimed() {
+    return getLong("collector_last_reclaimed");
+  }
+
+  /** @return time of the last cycle of the collector in milliseconds or 0 if none */
+  public long getCollectorLastRun() {
+    return getLong("collector_last_run");
+  }
+
+  public void recordCollectorCycle(int scanned, int reclaimed) {
+    pluginSettings.put(getPluginSettingsKey("collector_last_scanned"), String.valueOf(scanned));
+    pluginSettings.put(
+        getPluginSettingsKey("collector_last_reclaimed"), String.valueOf(reclaimed));
+    pluginSettings.put(
+        getPluginSettingsKey("collector_last_run"), String.valueOf(System.currentTimeMillis()));
+    pluginSettings.put(
+        getPluginSettingsKey("collector_reclaimed"),
+        String.valueOf(getCollectorReclaimed() + reclaimed));
   }
 
   public List<RepositoryHookTrigger> getPreReceiveHookTriggers() {
-    return getHookTriggers("pre_receive", DefaultSettings.PreReceiveHookTriggers);
+    return getTriggers().preReceive;
   }
 
   public List<RepositoryHookTrigger> getPostReceiveHookTriggers() {
-    return getHookTriggers("post_receive", DefaultSettings.PostReceiveHookTriggers);
+    return getTriggers().postReceive;
   }
 
   public List<RepositoryHookTrigger> getMergeCheckHookTriggers() {
-    return getHookTriggers("merge_check", DefaultSettings.MergeCheckHookTriggers);
+    return getTriggers().mergeCheck;
+  }
+
+  /**
+   * Triggers are read on every hook script which is installed, so they are cached on the node and
+   * shared by all instances of this dao. Saves made on other nodes are noticed by a version which
+   * is checked at most once per second.
+   */
+  private Triggers getTriggers() {
+    Triggers current = triggers;
+
+    long now = System.nanoTime();
+    if (current != null && now - current.checkedAt < TRIGGERS_CHECK_INTERVAL_NANOS) {
+      return current;
+    }
+
+    Object raw = pluginSettings.get(getPluginSettingsKey("triggers_version"));
+    String version = raw == null ? null : raw.toString();
+    if (current != null && Objects.equals(version, current.version)) {
+      current.checkedAt = now;
+      return current;
+    }
+
+    current = new Triggers(
+        version,
+        getHookTriggers("pre_receive", DefaultSettings.PreReceiveHookTriggers),
+        getHookTriggers("post_receive", DefaultSettings.PostReceiveHookTriggers),
+        getHookTriggers("merge_check", DefaultSettings.MergeCheckHookTriggers),
+        now);
+    triggers = current;
+
+    return current;
   }
 
   private List<String> sanitize(List<String> items, List<RepositoryHookTrigger> defaults) {
@@ -88,6 +350,20 @@ public class ExternalHooksSettingsDao {
     return getIds(getHookTriggers(items, defaults));
   }
 
+  private long getLong(String component) {
+    Object raw = pluginSettings.get(getPluginSettingsKey(component));
+    if (raw == null) {
+      return 0;
+    }
+
+    try {
+      return Long.parseLong(raw.toString());
+    } catch (NumberFormatException e) {
+      log.error("unrecognized {} in settings: {}", component, raw);
+      return 0;
+    }
+  }
+
   private String getPluginSettingsKey(String component) {
     String prefix = Const.PLUGIN_KEY + ":global:settings:";
 
@@ -134,4 +410,26 @@ public class ExternalHooksSettingsDao {
 
     return result;
   }
+
+  /** Immutable snapshot of triggers of every hook. */
+  private static class Triggers {
+    private final String version;
+    private final List<RepositoryHookTrigger> preReceive;
+    private final List<RepositoryHookTrigger> postReceive;
+    private final List<RepositoryHookTrigger> mergeCheck;
+    private volatile long checkedAt;
+
+    Triggers(
+        String version,
+        List<RepositoryHookTrigger> preReceive,
+        List<RepositoryHookTrigger> postReceive,
+        List<RepositoryHookTrigger> mergeCheck,
+        long checkedAt) {
+      this.version = version;
+      this.preReceive = ImmutableList.copyOf(preReceive);
+      this.postReceive = ImmutableList.copyOf(postReceive);
+      this.mergeCheck = ImmutableList.copyOf(mergeCheck);
+      this.checkedAt = checkedAt;
+    }
+  }
 }
@@ -25,4 +25,21 @@ public class FactoryStateDao {
 
     return states[0];
   }
+
+  /** Runs which are not finished, including the ones whose node is gone. */
+  public FactoryState[] findUnfinished() {
+    return ao.find(
+        FactoryState.class,
+        Query.select().from(FactoryState.class).where("FINISHED = ?", false).order("ID DESC"));
+  }
+
+  public FactoryState[] findShards(int parentId) {
+    return ao.find(
+        FactoryState.class,
+        Query.select().from(FactoryState.class).where("PARENT_ID = ?", parentId).order("SHARD"));
+  }
+
+  public void delete(FactoryState... states) {
+    ao.delete(states);
+  }
 }
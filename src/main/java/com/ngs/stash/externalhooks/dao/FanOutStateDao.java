@@ -0,0 +1,50 @@
+package com.ngs.stash.externalhooks.dao;
+
+import java.util.Date;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.ngs.stash.externalhooks.ao.FanOutState;
+
+import net.java.ao.DBParam;
+import net.java.ao.Query;
+
+public class FanOutStateDao {
+  private ActiveObjects ao;
+
+  public FanOutStateDao(ActiveObjects ao) {
+    this.ao = ao;
+  }
+
+  public FanOutState create(String name, String project, int total) {
+    return ao.create(
+        FanOutState.class,
+        new DBParam("NAME", name),
+        new DBParam("PROJECT", project),
+        new DBParam("TOTAL", total),
+        new DBParam("CURRENT", 0),
+        new DBParam("FAILED", 0),
+        new DBParam("FINISHED", false),
+        new DBParam("STARTED_AT", new Date()));
+  }
+
+  public FanOutState find(Integer id) {
+    FanOutState[] states =
+        ao.find(FanOutState.class, Query.select().from(FanOutState.class).where("ID = ?", id));
+    if (states.length == 0) {
+      return null;
+    }
+
+    return states[0];
+  }
+
+  /** @return the latest changes, running and finished ones */
+  public FanOutState[] findLatest(int limit) {
+    return ao.find(
+        FanOutState.class, Query.select().from(FanOutState.class).order("ID DESC").limit(limit));
+  }
+
+  /** Deletes changes finished before the given time. */
+  public void deleteFinishedBefore(Date date) {
+    ao.deleteWithSQL(FanOutState.class, "FINISHED = ? AND FINISHED_AT < ?", true, date);
+  }
+}
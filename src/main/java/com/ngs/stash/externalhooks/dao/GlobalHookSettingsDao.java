@@ -2,17 +2,32 @@ package com.ngs.stash.externalhooks.dao;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.ngs.stash.externalhooks.Const;
+import com.ngs.stash.externalhooks.GlobalHooks;
 import com.ngs.stash.externalhooks.ao.GlobalHookSettings;
 
 import net.java.ao.Query;
 
 public class GlobalHookSettingsDao {
+  private static final String VERSION_KEY = Const.PLUGIN_KEY + ":global-hooks:version";
+
+  private static final long CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
   private ActiveObjects ao;
+  private PluginSettings pluginSettings;
+
+  private volatile Snapshot snapshot;
 
-  public GlobalHookSettingsDao(ActiveObjects ao) {
+  public GlobalHookSettingsDao(ActiveObjects ao, PluginSettingsFactory pluginSettingsFactory) {
     this.ao = ao;
+    this.pluginSettings = pluginSettingsFactory.createGlobalSettings();
   }
 
   public GlobalHookSettings create() {
@@ -34,4 +49,59 @@ public class GlobalHookSettingsDao {
     }
     return items[0];
   }
+
+  /**
+   * Snapshot of global hooks which is cached on the node. Writes made on other nodes are noticed
+   * by a version which is checked at most once per second, see {@link #save(GlobalHookSettings)}.
+   */
+  public GlobalHooks getGlobalHooks() {
+    Snapshot current = snapshot;
+
+    long now = System.nanoTime();
+    if (current != null && now - current.checkedAt < CHECK_INTERVAL_NANOS) {
+      return current.globalHooks;
+    }
+
+    String version = getVersion();
+    if (current != null && Objects.equals(version, current.version)) {
+      current.checkedAt = now;
+      return current.globalHooks;
+    }
+
+    // the version is read before settings, so settings written meanwhile
+    // are read again on the next check
+    current = new Snapshot(version, new GlobalHooks(find()), now);
+    snapshot = current;
+
+    return current.globalHooks;
+  }
+
+  /** Saves settings of a global hook, cached snapshots are dropped on every node. */
+  public void save(GlobalHookSettings settings) {
+    settings.save();
+
+    pluginSettings.put(VERSION_KEY, UUID.randomUUID().toString());
+    snapshot = null;
+  }
+
+  private String getVersion() {
+    Object raw = pluginSettings.get(VERSION_KEY);
+    if (raw == null) {
+      return null;
+    }
+
+    return raw.toString();
+  }
+
+  private static class Snapshot {
+    private final String version;
+    private final GlobalHooks globalHooks;
+    private volatile long checkedAt;
+
+    Snapshot(String version, GlobalHooks globalHooks, long checkedAt) {
+      this.version = version;
+      this.globalHooks = globalHooks;
+      this.checkedAt = checkedAt;
+    }
+  }
 }
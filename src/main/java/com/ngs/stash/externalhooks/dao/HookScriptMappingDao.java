@@ -0,0 +1,186 @@
+package com.ngs.stash.externalhooks.dao;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.ngs.stash.externalhooks.Const;
+import com.ngs.stash.externalhooks.ao.HookScriptMapping;
+
+import net.java.ao.DBParam;
+import net.java.ao.Query;
+
+public class HookScriptMappingDao {
+  private static final String MIGRATED_KEY = Const.PLUGIN_KEY + ":hook-script-map:migrated";
+
+  private static final long MIGRATED_CHECK_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  private ActiveObjects ao;
+  private PluginSettings pluginSettings;
+
+  // mappings are never moved back, so once migrated it stays so
+  private volatile boolean migrated;
+  private volatile long migratedCheckedAt;
+
+  public HookScriptMappingDao(ActiveObjects ao, PluginSettingsFactory pluginSettingsFactory) {
+    this.ao = ao;
+    this.pluginSettings = pluginSettingsFactory.createGlobalSettings();
+  }
+
+  public HookScriptMapping find(String hookKey, String kind, int parentId, int repositoryId) {
+    HookScriptMapping[] mappings = ao.find(
+        HookScriptMapping.class,
+        Query.select()
+            .from(HookScriptMapping.class)
+            .where("SCOPE_KEY = ?", getScopeKey(hookKey, kind, parentId, repositoryId)));
+    if (mappings.length == 0) {
+      return null;
+    }
+
+    return mappings[0];
+  }
+
+  /** Mappings of all hooks on the project and its repositories or on the global scope if 0. */
+  public HookScriptMapping[] findByProject(int projectId) {
+    return ao.find(
+        HookScriptMapping.class,
+        Query.select().from(HookScriptMapping.class).where("PROJECT_ID = ?", projectId));
+  }
+
+  public HookScriptMapping[] findByHook(String hookKey) {
+    return ao.find(
+        HookScriptMapping.class,
+        Query.select().from(HookScriptMapping.class).where("HOOK_KEY = ?", hookKey));
+  }
+
+  /** @return the latest mapping of a hook script shared by scopes with the given content */
+  public HookScriptMapping findByContentHash(String hookKey, String contentHash) {
+    HookScriptMapping[] mappings = ao.find(
+        HookScriptMapping.class,
+        Query.select()
+            .from(HookScriptMapping.class)
+            .where("HOOK_KEY = ? AND CONTENT_HASH = ?", hookKey, contentHash)
+            .order("ID DESC")
+            .limit(1));
+    if (mappings.length == 0) {
+      return null;
+    }
+
+    return mappings[0];
+  }
+
+  /** @return ids of the given hook scripts which are referenced by any mapping */
+  public Set<Long> findReferenced(Collection<Long> scriptIds) {
+    Set<Long> referenced = new HashSet<>();
+    for (HookScriptMapping mapping : findByScripts(scriptIds)) {
+      referenced.add(mapping.getScriptId());
+    }
+
+    return referenced;
+  }
+
+  /** @return mappings which reference any of the given hook scripts */
+  public HookScriptMapping[] findByScripts(Collection<Long> scriptIds) {
+    if (scriptIds.isEmpty()) {
+      return new HookScriptMapping[0];
+    }
+
+    String placeholders = String.join(", ", Collections.nCopies(scriptIds.size(), "?"));
+    return ao.find(
+        HookScriptMapping.class,
+        Query.select()
+            .from(HookScriptMapping.class)
+            .where("SCRIPT_ID IN (" + placeholders + ")", scriptIds.toArray()));
+  }
+
+  /**
+   * Updates the mapping of the scope or creates it. Mappings are written by several threads and
+   * nodes at once, so a mapping created meanwhile by another one is updated instead.
+   */
+  public void save(
+      String hookKey,
+      String kind,
+      int projectId,
+      String parentType,
+      int parentId,
+      int repositoryId,
+      long scriptId,
+      String fingerprint,
+      String contentHash) {
+    HookScriptMapping mapping = find(hookKey, kind, parentId, repositoryId);
+    if (mapping == null) {
+      try {
+        ao.create(
+            HookScriptMapping.class,
+            new DBParam("SCOPE_KEY", getScopeKey(hookKey, kind, parentId, repositoryId)),
+            new DBParam("HOOK_KEY", hookKey),
+            new DBParam("KIND", kind),
+            new DBParam("PROJECT_ID", projectId),
+            new DBParam("PARENT_TYPE", parentType),
+            new DBParam("PARENT_ID", parentId),
+            new DBParam("REPOSITORY_ID", repositoryId),
+            new DBParam("SCRIPT_ID", scriptId),
+            new DBParam("FINGERPRINT", fingerprint),
+            new DBParam("CONTENT_HASH", contentHash));
+        return;
+      } catch (RuntimeException e) {
+        // violates the unique scope key if created meanwhile
+        mapping = find(hookKey, kind, parentId, repositoryId);
+        if (mapping == null) {
+          throw e;
+        }
+      }
+    }
+
+    mapping.setScriptId(scriptId);
+    mapping.setFingerprint(fingerprint);
+    mapping.setContentHash(contentHash);
+    mapping.save();
+  }
+
+  public void delete(String hookKey, String kind, int parentId, int repositoryId) {
+    ao.deleteWithSQL(
+        HookScriptMapping.class,
+        "SCOPE_KEY = ?",
+        getScopeKey(hookKey, kind, parentId, repositoryId));
+  }
+
+  public void delete(HookScriptMapping... mappings) {
+    if (mappings.length == 0) {
+      return;
+    }
+
+    ao.delete(mappings);
+  }
+
+  /** Whether all mappings are moved from plugin settings, so the table is the only source. */
+  public boolean isMigrated() {
+    if (migrated) {
+      return true;
+    }
+
+    long now = System.nanoTime();
+    if (now - migratedCheckedAt < MIGRATED_CHECK_NANOS && migratedCheckedAt != 0) {
+      return false;
+    }
+
+    migrated = Boolean.parseBoolean(String.valueOf(pluginSettings.get(MIGRATED_KEY)));
+    migratedCheckedAt = now;
+
+    return migrated;
+  }
+
+  public void setMigrated() {
+    pluginSettings.put(MIGRATED_KEY, String.valueOf(true));
+    migrated = true;
+  }
+
+  private static String getScopeKey(String hookKey, String kind, int parentId, int repositoryId) {
+    return hookKey + ":" + kind + ":" + parentId + ":" + repositoryId;
+  }
+}
@@ -1,10 +1,7 @@
 package com.ngs.stash.externalhooks.hook;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -15,9 +12,11 @@ import com.atlassian.bitbucket.cluster.ClusterService;
 import com.atlassian.bitbucket.hook.repository.RepositoryHookTrigger;
 import com.atlassian.bitbucket.hook.script.HookScript;
 import com.atlassian.bitbucket.hook.script.HookScriptCreateRequest;
+import com.atlassian.bitbucket.hook.script.HookScriptRemoveConfigurationRequest;
 import com.atlassian.bitbucket.hook.script.HookScriptService;
 import com.atlassian.bitbucket.hook.script.HookScriptSetConfigurationRequest;
 import com.atlassian.bitbucket.hook.script.HookScriptType;
+import com.atlassian.bitbucket.hook.script.HookScriptUpdateRequest;
 import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.permission.PermissionService;
 import com.atlassian.bitbucket.scope.GlobalScope;
@@ -25,22 +24,21 @@ import com.atlassian.bitbucket.scope.ProjectScope;
 import com.atlassian.bitbucket.scope.RepositoryScope;
 import com.atlassian.bitbucket.scope.Scope;
 import com.atlassian.bitbucket.scope.ScopeType;
-import com.atlassian.bitbucket.server.StorageService;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.setting.SettingsValidationErrors;
 import com.atlassian.bitbucket.user.SecurityService;
-import com.atlassian.plugin.util.ClassLoaderUtils;
 import com.atlassian.sal.api.pluginsettings.PluginSettings;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
-import com.atlassian.upm.api.license.PluginLicenseManager;
-import com.google.common.base.Charsets;
-import com.google.common.escape.Escaper;
-import com.google.common.escape.Escapers;
 import com.ngs.stash.externalhooks.Const;
+import com.ngs.stash.externalhooks.ExecutableIndex;
 import com.ngs.stash.externalhooks.LicenseValidator;
+import com.ngs.stash.externalhooks.ReconcilePlan;
+import com.ngs.stash.externalhooks.ao.HookScriptMapping;
+import com.ngs.stash.externalhooks.dao.HookScriptMappingDao;
+import com.ngs.stash.externalhooks.util.LatencyObserver;
 import com.ngs.stash.externalhooks.util.ScopeUtil;
 
-import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,34 +46,42 @@ import org.slf4j.LoggerFactory;
 public class ExternalHookScript {
   private static Logger log = LoggerFactory.getLogger(ExternalHookScript.class);
 
-  private final Escaper SHELL_ESCAPE;
   private PermissionService permissionService;
   private ClusterService clusterService;
-  private StorageService storageService;
   private HookScriptService hookScriptService;
   private PluginSettings pluginSettings;
   private String hookId;
   private HookScriptType hookScriptType;
   private HookTriggersGetter getRepositoryHookTriggers;
   private SecurityService securityService;
-  private String hookScriptTemplate;
+  private HookScriptRenderer renderer;
   private LicenseValidator license;
   private String hookKey;
+  private ReconcilePlan plan = new ReconcilePlan(false);
+  private LatencyObserver latency = LatencyObserver.NONE;
+  private HookScriptMappingDao mappingDao;
+  private ExecutableIndex executables;
+  private HookScriptIndex index;
+
+  // serializes creating shared hook scripts with the same content on this node
+  private Object[] sharedLocks;
 
   public ExternalHookScript(
       PermissionService permissionService,
-      PluginLicenseManager pluginLicenseManager,
+      LicenseValidator license,
       ClusterService clusterService,
-      StorageService storageService,
       HookScriptService hookScriptService,
       PluginSettingsFactory pluginSettingsFactory,
       SecurityService securityService,
+      HookScriptMappingDao mappingDao,
+      HookScriptIndex index,
+      ExecutableIndex executables,
+      HookScriptRenderer renderer,
       String hookId,
       HookScriptType hookScriptType,
-      HookTriggersGetter getRepositoryHookTriggers)
-      throws IOException {
+      HookTriggersGetter getRepositoryHookTriggers) {
     this.permissionService = permissionService;
-    this.storageService = storageService;
+    this.license = license;
     this.clusterService = clusterService;
     this.hookScriptService = hookScriptService;
     this.pluginSettings = pluginSettingsFactory.createGlobalSettings();
@@ -84,14 +90,45 @@ public class ExternalHookScript {
     this.hookScriptType = hookScriptType;
     this.securityService = securityService;
     this.getRepositoryHookTriggers = getRepositoryHookTriggers;
+    this.mappingDao = mappingDao;
+    this.index = index;
+    this.executables = executables;
+    this.renderer = renderer;
+
+    this.sharedLocks = new Object[64];
+    for (int i = 0; i < sharedLocks.length; i++) {
+      sharedLocks[i] = new Object();
+    }
+  }
 
-    final Escapers.Builder builder = Escapers.builder();
-    builder.addEscape('\'', "'\"'\"'");
-    SHELL_ESCAPE = builder.build();
-
-    this.hookScriptTemplate = this.getResource("hook-script.template.bash");
+  private ExternalHookScript(
+      ExternalHookScript origin, ReconcilePlan plan, LatencyObserver latency) {
+    this.permissionService = origin.permissionService;
+    this.clusterService = origin.clusterService;
+    this.hookScriptService = origin.hookScriptService;
+    this.pluginSettings = origin.pluginSettings;
+    this.hookId = origin.hookId;
+    this.hookKey = origin.hookKey;
+    this.hookScriptType = origin.hookScriptType;
+    this.getRepositoryHookTriggers = origin.getRepositoryHookTriggers;
+    this.securityService = origin.securityService;
+    this.renderer = origin.renderer;
+    this.license = origin.license;
+    this.mappingDao = origin.mappingDao;
+    this.executables = origin.executables;
+    this.index = origin.index;
+    this.sharedLocks = origin.sharedLocks;
+    this.plan = plan;
+    this.latency = latency;
+  }
 
-    this.license = new LicenseValidator(pluginLicenseManager, storageService, clusterService);
+  /**
+   * Returns a copy of this script which reports every change to the given plan and doesn't write
+   * anything if the plan is a dry-run one. Latency of writing hook scripts is reported to the
+   * given observer.
+   */
+  public ExternalHookScript withPlan(ReconcilePlan plan, LatencyObserver latency) {
+    return new ExternalHookScript(this, plan, latency);
   }
 
   public String getHookKey() {
@@ -102,25 +139,6 @@ public class ExternalHookScript {
     return hookId;
   }
 
-  private String getResource(String name) throws IOException {
-    InputStream resource = ClassLoaderUtils.getResourceAsStream(name, this.getClass());
-    if (resource == null) {
-      throw new IllegalArgumentException("resource file not found: " + name);
-    }
-
-    StringBuilder stringBuilder = new StringBuilder();
-    String line = null;
-
-    try (BufferedReader bufferedReader =
-        new BufferedReader(new InputStreamReader(resource, Charsets.UTF_8))) {
-      while ((line = bufferedReader.readLine()) != null) {
-        stringBuilder.append(line).append("\n");
-      }
-    }
-
-    return stringBuilder.toString();
-  }
-
   public void validate(
       @Nonnull Settings settings, @Nonnull SettingsValidationErrors errors, @Nonnull Scope scope) {
     if (!this.license.isDefined()) {
@@ -154,20 +172,31 @@ public class ExternalHookScript {
       return;
     }
 
-    File executable =
-        this.getExecutable(settings.getString("exe", ""), settings.getBoolean("safe_path", false));
+    boolean safePath = settings.getBoolean("safe_path", false);
+    File executable = executables.resolve(settings.getString("exe", ""), safePath);
+    if (executable == null) {
+      errors.addFieldError("exe", "Executable does not exist");
+      return;
+    }
 
-    if ((executable == null) || (!executable.isFile())) {
+    // files in the safe directory are indexed, so the shared home isn't
+    // touched unless the file is not seen by the index yet
+    ExecutableIndex.Entry entry = safePath ? executables.get(executable) : null;
+    if (entry == null && !executable.isFile()) {
       errors.addFieldError("exe", "Executable does not exist");
       return;
     }
 
     boolean isExecutable;
-    try {
-      isExecutable = executable.canExecute();
-    } catch (SecurityException e) {
-      log.error("security exception on " + executable.getPath(), e);
-      isExecutable = false;
+    if (entry != null) {
+      isExecutable = entry.isExecutable();
+    } else {
+      try {
+        isExecutable = executable.canExecute();
+      } catch (SecurityException e) {
+        log.error("security exception on " + executable.getPath(), e);
+        isExecutable = false;
+      }
     }
 
     if (!isExecutable) {
@@ -178,7 +207,7 @@ public class ExternalHookScript {
 
   // Should be used only for uninstalling legacy ProjectScope scripts.
   public void uninstallLegacy(ProjectScope scope) {
-    delete(getLegacyPluginSettingsPath(scope), new CallbackLogDelete() {
+    delete(getLegacyPluginSettingsPath(scope), scope, new CallbackLogDelete() {
       @Override
       public void onSuccess(String hookKey, Long id) {
         log.debug(
@@ -205,8 +234,40 @@ public class ExternalHookScript {
     });
   }
 
+  /**
+   * Removes the hook script configured once on the whole project or globally, see {@link
+   * #installScoped(Settings, Scope)}.
+   */
+  public void uninstallScoped(Scope scope) {
+    delete(getScopedPluginSettingsPath(scope), scope, new CallbackLogDelete() {
+      @Override
+      public void onSuccess(String hookKey, Long id) {
+        log.debug(
+            "deleted scoped hook script {}: id={} {}", hookKey, id, ScopeUtil.toString(scope));
+      }
+
+      @Override
+      public void onMissingId(String hookKey) {
+        //
+      }
+
+      @Override
+      public void onMissingScript(String hookKey, Long id) {
+        log.debug(
+            "did not delete scoped hook script {}: id={} {} because the script is already gone",
+            hookKey,
+            id,
+            ScopeUtil.toString(scope));
+      }
+    });
+  }
+
+  public boolean isInstalledScoped(Scope scope) {
+    return readStoredHookScript(getScopedPluginSettingsPath(scope)).isPresent();
+  }
+
   public void uninstall(ProjectScope parent, RepositoryScope scope) {
-    delete(getPluginSettingsPath(parent, scope), new CallbackLogDelete() {
+    delete(getPluginSettingsPath(parent, scope), scope, new CallbackLogDelete() {
       @Override
       public void onSuccess(String hookKey, Long id) {
         log.debug(
@@ -236,7 +297,7 @@ public class ExternalHookScript {
   }
 
   public void uninstall(GlobalScope parentScope, RepositoryScope scope) {
-    delete(getPluginSettingsPath(parentScope, scope), new CallbackLogDelete() {
+    delete(getPluginSettingsPath(parentScope, scope), scope, new CallbackLogDelete() {
       @Override
       public void onSuccess(String hookKey, Long id) {
         log.debug(
@@ -264,7 +325,7 @@ public class ExternalHookScript {
   }
 
   public void uninstall(RepositoryScope scope) {
-    delete(getPluginSettingsPath(scope), new CallbackLogDelete() {
+    delete(getPluginSettingsPath(scope), scope, new CallbackLogDelete() {
       @Override
       public void onSuccess(String hookKey, Long id) {
         log.debug(
@@ -288,96 +349,516 @@ public class ExternalHookScript {
     });
   }
 
-  private void delete(String path, CallbackLogDelete logger) {
-    Optional<Long> id = readHookScriptId(path);
-    if (id.isPresent()) {
-      boolean deleted = deleteHookScript(id.get());
-      if (deleted) {
-        logger.onSuccess(hookKey, id.get());
-      } else {
-        logger.onMissingScript(hookKey, id.get());
+  private void delete(ScriptPath path, Scope scope, CallbackLogDelete logger) {
+    Optional<StoredHookScript> stored = readStoredHookScript(path);
+    if (!stored.isPresent()) {
+      logger.onMissingId(hookKey);
+      return;
+    }
+
+    Long id = stored.get().getId();
+    if (plan.isDryRun()) {
+      if (getHookScript(id).isPresent()) {
+        plan.onDelete(id);
       }
+      return;
+    }
 
-      pluginSettings.remove(path);
+    // the mapping is removed first, so it's not counted as a reference of a
+    // shared script
+    removeStoredHookScript(path);
+
+    boolean deleted;
+    if (stored.get().isShared()) {
+      deleted = releaseShared(stored.get(), scope);
     } else {
-      logger.onMissingId(hookKey);
+      deleted = deleteHookScript(id);
+    }
+
+    if (deleted) {
+      plan.onDelete(id);
+      logger.onSuccess(hookKey, id);
+    } else {
+      logger.onMissingScript(hookKey, id);
     }
   }
 
   public void install(
       @Nonnull Settings settings, @Nonnull ProjectScope parent, @Nonnull RepositoryScope scope) {
-    String pluginSettingsPath = getPluginSettingsPath(parent, scope);
-    Pair<HookScript, List<RepositoryHookTrigger>> result =
+    ScriptPath pluginSettingsPath = getPluginSettingsPath(parent, scope);
+    Optional<Pair<HookScript, List<RepositoryHookTrigger>>> result =
         install(pluginSettingsPath, settings, scope);
+    if (!result.isPresent()) {
+      return;
+    }
 
     log.debug(
-        "created project/repository hook script {}: id={} {} {} triggers={}",
+        "applied project/repository hook script {}: id={} {} {} triggers={}",
         hookId,
-        result.getLeft().getId(),
+        result.get().getLeft().getId(),
         ScopeUtil.toString(parent),
         ScopeUtil.toString(scope),
-        listTriggers(result.getRight()));
+        listTriggers(result.get().getRight()));
   }
 
   public void install(
       @Nonnull Settings settings,
       @Nonnull GlobalScope globalParent,
       @Nonnull RepositoryScope scope) {
-    String pluginSettingsPath = getPluginSettingsPath(globalParent, scope);
-    Pair<HookScript, List<RepositoryHookTrigger>> result =
-        install(pluginSettingsPath, settings, scope);
+    ScriptPath pluginSettingsPath = getPluginSettingsPath(globalParent, scope);
+    Optional<Pair<HookScript, List<RepositoryHookTrigger>>> result =
+        installShared(pluginSettingsPath, settings, scope);
+    if (!result.isPresent()) {
+      return;
+    }
 
     log.debug(
-        "created global/repository hook script {}: id={} {} triggers={}",
+        "applied global/repository hook script {}: id={} {} triggers={}",
         hookId,
-        result.getLeft().getId(),
+        result.get().getLeft().getId(),
         ScopeUtil.toString(scope),
-        listTriggers(result.getRight()));
+        listTriggers(result.get().getRight()));
   }
 
   public void install(@Nonnull Settings settings, @Nonnull RepositoryScope scope) {
-    String pluginSettingsPath = getPluginSettingsPath(scope);
-    Pair<HookScript, List<RepositoryHookTrigger>> result =
+    ScriptPath pluginSettingsPath = getPluginSettingsPath(scope);
+    Optional<Pair<HookScript, List<RepositoryHookTrigger>>> result =
         install(pluginSettingsPath, settings, scope);
+    if (!result.isPresent()) {
+      return;
+    }
+
+    log.debug(
+        "applied repository hook script {}: id={} {} triggers={}",
+        hookId,
+        result.get().getLeft().getId(),
+        ScopeUtil.toString(scope),
+        listTriggers(result.get().getRight()));
+  }
+
+  /**
+   * Installs a single hook script configured on the project or globally instead of one hook script
+   * per repository. Bitbucket runs such script for every repository in the scope, so it must be
+   * used only when no repository in the scope overrides the hook.
+   */
+  public void installScoped(@Nonnull Settings settings, @Nonnull Scope scope) {
+    Optional<Pair<HookScript, List<RepositoryHookTrigger>>> result =
+        install(getScopedPluginSettingsPath(scope), settings, scope);
+    if (!result.isPresent()) {
+      return;
+    }
 
     log.debug(
-        "created repository hook script {}: id={} {} triggers={}",
+        "applied scoped hook script {}: id={} {} triggers={}",
         hookId,
-        result.getLeft().getId(),
+        result.get().getLeft().getId(),
         ScopeUtil.toString(scope),
-        listTriggers(result.getRight()));
+        listTriggers(result.get().getRight()));
   }
 
-  private Pair<HookScript, List<RepositoryHookTrigger>> install(
-      String pluginSettingsPath, @Nonnull Settings settings, @Nonnull RepositoryScope scope) {
-    Optional<Long> hookScriptId = readHookScriptId(pluginSettingsPath);
-    if (hookScriptId.isPresent()) {
-      deleteHookScript(hookScriptId.get());
+  /**
+   * Brings the hook script stored under given path to the desired state: only the configuration is
+   * set again if the script already has the same content and triggers, the content is updated in
+   * place if it differs and the script is created only if it doesn't exist at all.
+   *
+   * @return the installed script or nothing if the plan is a dry-run one
+   */
+  private Optional<Pair<HookScript, List<RepositoryHookTrigger>>> install(
+      ScriptPath pluginSettingsPath, @Nonnull Settings settings, @Nonnull Scope scope) {
+    HookScriptRenderer.Script script = renderer.render(pluginSettingsPath.getPath(), settings);
+    String content = script.getContent();
+    List<RepositoryHookTrigger> triggers = getRepositoryHookTriggers.get();
+    String fingerprint = getFingerprint(script, triggers);
+
+    Optional<StoredHookScript> stored = readStoredHookScript(pluginSettingsPath);
+    Optional<HookScript> existing = stored.flatMap(value -> getHookScript(value.getId()));
+
+    HookScript hookScript;
+    if (existing.isPresent() && !stored.get().isShared()) {
+      hookScript = existing.get();
+      plan.onReference(hookScript.getId());
+      if (fingerprint.equals(stored.get().getFingerprint())) {
+        // the configuration might be removed outside of the plugin, setting it
+        // again is a no-op otherwise
+        if (!plan.isDryRun()) {
+          configure(hookScript, scope, triggers);
+        }
+
+        plan.onUnchanged();
+        return Optional.of(Pair.of(hookScript, triggers));
+      }
+
+      plan.onUpdate();
+      if (plan.isDryRun()) {
+        return Optional.empty();
+      }
+
+      // only triggers are changed, so the content is left as is
+      if (!isSameContent(fingerprint, stored.get().getFingerprint())) {
+        hookScript = update(hookScript, content);
+      }
+    } else {
+      plan.onCreate();
+      if (plan.isDryRun()) {
+        return Optional.empty();
+      }
+
+      hookScript = create(content);
+      plan.onReference(hookScript.getId());
     }
 
-    HookScript hookScript = create(pluginSettingsPath, settings);
+    storeHookScript(
+        pluginSettingsPath, new StoredHookScript(hookScript.getId(), fingerprint, null));
 
-    pluginSettings.put(pluginSettingsPath, String.valueOf(hookScript.getId()));
+    configure(hookScript, scope, triggers);
 
+    // the previous shared script is released only after the scope's mapping
+    // stops referencing it
+    if (existing.isPresent() && stored.get().isShared()) {
+      releaseShared(stored.get(), scope);
+    }
+
+    return Optional.of(Pair.of(hookScript, triggers));
+  }
+
+  /**
+   * Same as {@link #install(ScriptPath, Settings, Scope)}, but the hook script is addressed
+   * by its content: every scope with the same settings shares a single hook script and only has its
+   * own configuration of it. Scopes reference the shared script by their mappings, so it's found
+   * and counted by the mapping table and deleted when no mapping references it anymore.
+   */
+  private Optional<Pair<HookScript, List<RepositoryHookTrigger>>> installShared(
+      ScriptPath pluginSettingsPath, @Nonnull Settings settings, @Nonnull RepositoryScope scope) {
+    HookScriptRenderer.Script script = renderer.render(getSharedTag(), settings);
+    String content = script.getContent();
+    String contentHash = script.getContentHash();
     List<RepositoryHookTrigger> triggers = getRepositoryHookTriggers.get();
+    String fingerprint = getFingerprint(script, triggers);
+
+    Optional<StoredHookScript> stored = readStoredHookScript(pluginSettingsPath);
+    if (stored.isPresent() && contentHash.equals(stored.get().getContentHash())) {
+      Optional<HookScript> existing = getHookScript(stored.get().getId());
+      if (existing.isPresent()) {
+        plan.onReference(existing.get().getId());
+        if (fingerprint.equals(stored.get().getFingerprint())) {
+          if (!plan.isDryRun()) {
+            configure(existing.get(), scope, triggers);
+          }
+
+          plan.onUnchanged();
+          return Optional.of(Pair.of(existing.get(), triggers));
+        }
+
+        // the same content, only triggers are changed
+        plan.onUpdate();
+        if (plan.isDryRun()) {
+          return Optional.empty();
+        }
+
+        configure(existing.get(), scope, triggers);
+
+        storeHookScript(
+            pluginSettingsPath,
+            new StoredHookScript(existing.get().getId(), fingerprint, contentHash));
+
+        return Optional.of(Pair.of(existing.get(), triggers));
+      }
+    }
+
+    if (stored.isPresent()) {
+      plan.onUpdate();
+    } else {
+      plan.onCreate();
+    }
+
+    Optional<HookScript> shared = findSharedHookScript(contentHash);
+    if (plan.isDryRun()) {
+      shared.ifPresent(value -> plan.onReference(value.getId()));
+      return Optional.empty();
+    }
+
+    HookScript hookScript;
+    if (shared.isPresent()) {
+      hookScript = attachShared(
+          shared, content, contentHash, pluginSettingsPath, fingerprint, scope, triggers);
+    } else {
+      // repositories of a project are applied concurrently, so the script is
+      // created by one of them and others find it by the mapping stored here
+      synchronized (getSharedLock(contentHash)) {
+        hookScript = attachShared(
+            findSharedHookScript(contentHash),
+            content,
+            contentHash,
+            pluginSettingsPath,
+            fingerprint,
+            scope,
+            triggers);
+      }
+    }
+
+    // releasing previous script only after the new one is configured, so the
+    // repository is never left without the hook
+    if (stored.isPresent() && stored.get().getId().longValue() != hookScript.getId()) {
+      if (stored.get().isShared()) {
+        releaseShared(stored.get(), scope);
+      } else {
+        deleteHookScript(stored.get().getId());
+      }
+    }
+
+    return Optional.of(Pair.of(hookScript, triggers));
+  }
+
+  /**
+   * Configures the shared hook script for the scope and stores its mapping, the script is created
+   * first if there is none.
+   */
+  private HookScript attachShared(
+      Optional<HookScript> shared,
+      String content,
+      String contentHash,
+      ScriptPath pluginSettingsPath,
+      String fingerprint,
+      Scope scope,
+      List<RepositoryHookTrigger> triggers) {
+    HookScript hookScript;
+    if (shared.isPresent()) {
+      hookScript = shared.get();
+    } else {
+      hookScript = create(content);
+      log.debug(
+          "created shared hook script {}: id={} hash={}", hookId, hookScript.getId(), contentHash);
+    }
+
+    plan.onReference(hookScript.getId());
+
+    try {
+      configure(hookScript, scope, triggers);
+    } catch (RuntimeException e) {
+      // a script created for this scope isn't referenced by any mapping yet
+      if (!shared.isPresent()) {
+        deleteHookScript(hookScript.getId());
+      }
+
+      throw e;
+    }
+
+    storeHookScript(
+        pluginSettingsPath, new StoredHookScript(hookScript.getId(), fingerprint, contentHash));
+
+    return hookScript;
+  }
+
+  private Object getSharedLock(String contentHash) {
+    return sharedLocks[Math.floorMod(contentHash.hashCode(), sharedLocks.length)];
+  }
+
+  /** @return the hook script shared by scopes with the given content if it still exists */
+  private Optional<HookScript> findSharedHookScript(String contentHash) {
+    HookScriptMapping mapping = mappingDao.findByContentHash(hookKey, contentHash);
+    if (mapping == null) {
+      return Optional.empty();
+    }
+
+    return getHookScript(mapping.getScriptId());
+  }
 
+  /**
+   * Releases a shared hook script which the given scope doesn't reference anymore: removes the
+   * configuration of this scope or deletes the script completely if no mapping references it. The
+   * mapping of the scope must be removed or replaced beforehand.
+   *
+   * <p>A script acquired by another node while it's deleted is left dangling in its mapping until
+   * the next reconcile of that scope creates it again.
+   *
+   * @return false if the hook script is already gone
+   */
+  private boolean releaseShared(StoredHookScript stored, Scope scope) {
+    Optional<HookScript> hookScript = getHookScript(stored.getId());
+    if (!hookScript.isPresent()) {
+      return false;
+    }
+
+    // mappings still kept in plugin settings are not seen, so scripts are left
+    // to the collector until they are migrated
+    boolean referenced = !mappingDao.isMigrated()
+        || !mappingDao.findReferenced(Collections.singleton(stored.getId())).isEmpty();
+    if (referenced) {
+      removeConfiguration(hookScript.get(), scope);
+      return true;
+    }
+
+    deleteHookScript(stored.getId());
+
+    log.debug(
+        "deleted shared hook script {}: id={} hash={}",
+        hookId,
+        stored.getId(),
+        stored.getContentHash());
+
+    return true;
+  }
+
+  private void configure(HookScript hookScript, Scope scope, List<RepositoryHookTrigger> triggers) {
     HookScriptSetConfigurationRequest.Builder configBuilder =
         new HookScriptSetConfigurationRequest.Builder(hookScript, scope);
     configBuilder.triggers(triggers);
 
     HookScriptSetConfigurationRequest configRequest = configBuilder.build();
-    hookScriptService.setConfiguration(configRequest);
+    latency.run(() -> hookScriptService.setConfiguration(configRequest));
+  }
+
+  private void removeConfiguration(HookScript hookScript, Scope scope) {
+    HookScriptRemoveConfigurationRequest request =
+        new HookScriptRemoveConfigurationRequest.Builder(hookScript, scope).build();
+
+    try {
+      hookScriptService.removeConfiguration(request);
+    } catch (Exception e) {
+      // the scope might be already deleted together with its configuration
+      log.warn(
+          "unable to remove configuration of hook script {}: id={} {}: {}",
+          hookId,
+          hookScript.getId(),
+          ScopeUtil.toString(scope),
+          e.toString());
+    }
+  }
 
-    return Pair.of(hookScript, triggers);
+  /**
+   * Moves hook scripts of the repository from plugin settings to the mapping table, see {@link
+   * HookScriptMappingDao#isMigrated()}.
+   */
+  public void migrate(RepositoryScope scope) {
+    ProjectScope parent = new ProjectScope(scope.getRepository().getProject());
+
+    migrateStoredHookScript(getPluginSettingsPath(scope));
+    migrateStoredHookScript(getPluginSettingsPath(parent, scope));
+    migrateStoredHookScript(getPluginSettingsPath(new GlobalScope(), scope));
+  }
+
+  /** Moves hook scripts configured on the whole project, including legacy ones. */
+  public void migrate(ProjectScope scope) {
+    migrateStoredHookScript(getScopedPluginSettingsPath(scope));
+    migrateStoredHookScript(getLegacyPluginSettingsPath(scope));
+  }
+
+  /** Moves the hook script configured on the whole instance. */
+  public void migrate(GlobalScope scope) {
+    migrateStoredHookScript(getScopedPluginSettingsPath(scope));
+  }
+
+  private Optional<StoredHookScript> migrateStoredHookScript(ScriptPath path) {
+    Object value = pluginSettings.get(path.getPath());
+    if (value == null) {
+      return Optional.empty();
+    }
+
+    // the mapping might be written already by another node
+    HookScriptMapping mapping = findMapping(path);
+
+    StoredHookScript stored;
+    if (mapping != null) {
+      stored = StoredHookScript.of(mapping);
+    } else {
+      stored = StoredHookScript.parse(value.toString());
+      saveMapping(path, stored);
+    }
+
+    pluginSettings.remove(path.getPath());
+
+    return Optional.of(stored);
   }
 
-  public Optional<Long> readHookScriptId(String pluginSettingsPath) {
-    Object id = pluginSettings.get(pluginSettingsPath);
-    if (id != null) {
-      return Optional.of(Long.valueOf(id.toString()));
+  private boolean loadStoredHookScripts(
+      int projectId, HookScriptIndex.Entries<StoredHookScript> entries) {
+    // checked before reading, so mappings migrated meanwhile are not taken as
+    // missing ones
+    boolean migrated = mappingDao.isMigrated();
+
+    for (HookScriptMapping mapping : mappingDao.findByProject(projectId)) {
+      entries.put(
+          mapping.getHookKey(),
+          HookScriptIndex.Kind.valueOf(mapping.getKind()),
+          HookScriptIndex.key(mapping.getParentId(), mapping.getRepositoryId()),
+          StoredHookScript.of(mapping));
     }
 
-    return Optional.empty();
+    return migrated;
+  }
+
+  private Optional<StoredHookScript> readStoredHookScript(ScriptPath path) {
+    Optional<StoredHookScript> indexed = index.get(
+        hookKey, path.getKind(), path.getProjectId(), path.getKey(), this::loadStoredHookScripts);
+    if (indexed != null) {
+      return indexed;
+    }
+
+    boolean migrated = mappingDao.isMigrated();
+
+    Optional<StoredHookScript> stored;
+    HookScriptMapping mapping = findMapping(path);
+    if (mapping != null) {
+      stored = Optional.of(StoredHookScript.of(mapping));
+    } else if (!migrated) {
+      stored = migrateStoredHookScript(path);
+    } else {
+      stored = Optional.empty();
+    }
+
+    index.load(hookKey, path.getKind(), path.getProjectId(), path.getKey(), stored.orElse(null));
+
+    return stored;
+  }
+
+  private void storeHookScript(ScriptPath path, StoredHookScript stored) {
+    saveMapping(path, stored);
+    index.store(hookKey, path.getKind(), path.getProjectId(), path.getKey(), stored);
+  }
+
+  private void removeStoredHookScript(ScriptPath path) {
+    mappingDao.delete(
+        hookKey, path.getKind().name(), path.getParentId(), path.getRepositoryId());
+    if (!mappingDao.isMigrated()) {
+      pluginSettings.remove(path.getPath());
+    }
+
+    index.store(hookKey, path.getKind(), path.getProjectId(), path.getKey(), null);
+  }
+
+  private HookScriptMapping findMapping(ScriptPath path) {
+    return mappingDao.find(
+        hookKey, path.getKind().name(), path.getParentId(), path.getRepositoryId());
+  }
+
+  private void saveMapping(ScriptPath path, StoredHookScript stored) {
+    mappingDao.save(
+        hookKey,
+        path.getKind().name(),
+        path.getProjectId(),
+        path.getParentType().getId(),
+        path.getParentId(),
+        path.getRepositoryId(),
+        stored.getId(),
+        stored.getFingerprint(),
+        stored.getContentHash());
+  }
+
+  /**
+   * Content and triggers are hashed separately, so a hook script is only configured again if
+   * triggers are changed. Previous versions hashed them together.
+   */
+  private String getFingerprint(
+      HookScriptRenderer.Script script, List<RepositoryHookTrigger> triggers) {
+    return script.getContentHash() + "." + DigestUtils.sha256Hex(listTriggers(triggers));
+  }
+
+  private static boolean isSameContent(String fingerprint, String stored) {
+    int separator = fingerprint.indexOf('.');
+
+    return stored != null
+        && stored.length() == fingerprint.length()
+        && stored.regionMatches(0, fingerprint, 0, separator + 1);
   }
 
   private Optional<HookScript> getHookScript(Long id) {
@@ -390,7 +871,7 @@ public class ExternalHookScript {
       return securityService
           .withPermission(Permission.SYS_ADMIN, "atlassian-external-hooks: delete hook script")
           .call(() -> {
-            hookScriptService.delete(maybeHookScript.get());
+            latency.run(() -> hookScriptService.delete(maybeHookScript.get()));
             return true;
           });
     }
@@ -398,9 +879,7 @@ public class ExternalHookScript {
     return false;
   }
 
-  private HookScript create(String tag, Settings settings) {
-    String script = getScriptContents(tag, settings);
-
+  private HookScript create(String script) {
     HookScriptCreateRequest.Builder builder = new HookScriptCreateRequest.Builder(
             this.hookId, Const.PLUGIN_KEY, this.hookScriptType)
         .content(script);
@@ -409,55 +888,17 @@ public class ExternalHookScript {
     return securityService
         .withPermission(
             Permission.SYS_ADMIN, "atlassian-external-hooks: create low-level hook script")
-        .call(() -> hookScriptService.create(hookScriptCreateRequest));
+        .call(() -> latency.time(() -> hookScriptService.create(hookScriptCreateRequest)));
   }
 
-  private String getScriptContents(String tag, Settings settings) {
-    File executable =
-        this.getExecutable(settings.getString("exe", ""), settings.getBoolean("safe_path", false));
-
-    Boolean async = settings.getBoolean("async", false);
-
-    StringBuilder scriptBuilder = new StringBuilder();
-    scriptBuilder.append(this.hookScriptTemplate).append("\n\n");
-
-    scriptBuilder.append("# com.ngs.stash.externalhooks tag: " + tag + "\n\n");
-
-    if (async) {
-      // dumping stdin to a temporary file
-      scriptBuilder.append("stdin=\"$(mktemp)\"\n");
-      scriptBuilder.append("cat >\"$stdin\"\n");
-      // subshell start
-      scriptBuilder.append("(\n");
-      // deleting stdin after finishing the job
-      scriptBuilder.append("    trap \"rm \\\"$stdin\\\"\" EXIT\n");
-      // just an indentation for script and params
-      scriptBuilder.append("    ");
-    }
-    scriptBuilder.append("'").append(SHELL_ESCAPE.escape(executable.toString())).append("'");
-
-    String params = settings.getString("params");
-    if (params != null) {
-      params = params.trim();
-      if (params.length() != 0) {
-        for (String arg : settings.getString("params").split("\r\n")) {
-          if (arg.length() != 0) {
-            scriptBuilder.append(" '").append(SHELL_ESCAPE.escape(arg)).append('\'');
-          }
-        }
-      }
-    }
-
-    if (async) {
-      scriptBuilder.append(" <\"$stdin\"\n");
-
-      // subshell end: closing all fds and starting subshell in background
-      scriptBuilder.append(") >/dev/null 2>&1 <&- &\n");
-    }
-
-    scriptBuilder.append("\n");
+  private HookScript update(HookScript hookScript, String script) {
+    HookScriptUpdateRequest hookScriptUpdateRequest =
+        new HookScriptUpdateRequest.Builder(hookScript).content(script).build();
 
-    return scriptBuilder.toString();
+    return securityService
+        .withPermission(
+            Permission.SYS_ADMIN, "atlassian-external-hooks: update low-level hook script")
+        .call(() -> latency.time(() -> hookScriptService.update(hookScriptUpdateRequest)));
   }
 
   private String listTriggers(List<RepositoryHookTrigger> list) {
@@ -466,77 +907,204 @@ public class ExternalHookScript {
         + "]";
   }
 
-  private File getExecutable(String path, boolean safeDir) {
-    File executable = new File(path);
-    if (safeDir) {
-      path = FilenameUtils.normalize(path);
-      if (path == null) {
-        executable = null;
-      } else {
-        String safeBaseDir = getHomeDir().getAbsolutePath() + "/external-hooks/";
-        executable = new File(safeBaseDir, path);
-      }
-    }
-
-    return executable;
-  }
-
-  private File getHomeDir() {
-    if (this.clusterService.isAvailable()) {
-      return this.storageService.getSharedHomeDir().toFile();
-    } else {
-      return this.storageService.getHomeDir().toFile();
-    }
-  }
+  private ScriptPath getPluginSettingsPath(ProjectScope parent, RepositoryScope scope) {
+    int parentId = parent.getResourceId().orElse(-1);
+    int scopeId = scope.getResourceId().orElse(-1);
 
-  private String getPluginSettingsPath(ProjectScope parent, RepositoryScope scope) {
     StringBuilder builder = new StringBuilder(this.hookKey);
     builder.append(":").append(ScopeType.PROJECT.getId());
-    builder.append(":").append(parent.getResourceId().orElse(-1));
+    builder.append(":").append(parentId);
 
     builder.append(":").append(ScopeType.REPOSITORY.getId());
-    builder.append(":").append(scope.getResourceId().orElse(-1));
-
-    return builder.toString();
+    builder.append(":").append(scopeId);
+
+    return new ScriptPath(
+        builder.toString(),
+        HookScriptIndex.Kind.PROJECT_REPOSITORY,
+        parentId,
+        ScopeType.PROJECT,
+        parentId,
+        scopeId);
   }
 
-  private String getPluginSettingsPath(GlobalScope parent, RepositoryScope scope) {
+  private ScriptPath getPluginSettingsPath(GlobalScope parent, RepositoryScope scope) {
+    int scopeId = scope.getResourceId().orElse(-1);
+
     StringBuilder builder = new StringBuilder(this.hookKey);
     builder.append(":").append(ScopeType.GLOBAL.getId());
     builder.append(":").append("global");
 
     builder.append(":").append(ScopeType.REPOSITORY.getId());
-    builder.append(":").append(scope.getResourceId().orElse(-1));
-
-    return builder.toString();
+    builder.append(":").append(scopeId);
+
+    return new ScriptPath(
+        builder.toString(),
+        HookScriptIndex.Kind.GLOBAL_REPOSITORY,
+        ScopeUtil.getProjectId(scope),
+        ScopeType.GLOBAL,
+        0,
+        scopeId);
   }
 
-  private String getPluginSettingsPath(RepositoryScope scope) {
+  private ScriptPath getPluginSettingsPath(RepositoryScope scope) {
+    int scopeId = scope.getResourceId().orElse(-1);
+
     StringBuilder builder = new StringBuilder(this.hookKey);
     builder.append(":").append(ScopeType.REPOSITORY.getId());
-    builder.append(":").append(scope.getResourceId().orElse(-1));
+    builder.append(":").append(scopeId);
+
+    return new ScriptPath(
+        builder.toString(),
+        HookScriptIndex.Kind.REPOSITORY,
+        ScopeUtil.getProjectId(scope),
+        ScopeType.REPOSITORY,
+        scopeId,
+        scopeId);
+  }
+
+  private ScriptPath getScopedPluginSettingsPath(Scope scope) {
+    StringBuilder builder = new StringBuilder(this.hookKey);
+    builder.append(":").append("scoped");
+    builder.append(":").append(scope.getType().getId());
+    if (scope.getResourceId().isPresent()) {
+      builder.append(":").append(scope.getResourceId().get());
+    }
+
+    int scopeId = scope.getResourceId().orElse(0);
+
+    return new ScriptPath(
+        builder.toString(),
+        HookScriptIndex.Kind.SCOPED,
+        ScopeUtil.getProjectId(scope),
+        scope.getType(),
+        scopeId,
+        scope.getType() == ScopeType.REPOSITORY ? scopeId : 0);
+  }
+
+  private String getSharedTag() {
+    StringBuilder builder = new StringBuilder(this.hookKey);
+    builder.append(":").append(ScopeType.GLOBAL.getId());
+    builder.append(":").append("shared");
 
     return builder.toString();
   }
 
-  private String getLegacyPluginSettingsPath(ProjectScope scope) {
+  private ScriptPath getLegacyPluginSettingsPath(ProjectScope scope) {
     StringBuilder builder = new StringBuilder(this.hookKey);
     builder.append(":").append(scope.getType().getId());
     if (scope.getResourceId().isPresent()) {
       builder.append(":").append(scope.getResourceId().get());
     }
-    return builder.toString();
+    int scopeId = scope.getResourceId().orElse(-1);
+
+    return new ScriptPath(
+        builder.toString(),
+        HookScriptIndex.Kind.LEGACY_PROJECT,
+        scopeId,
+        ScopeType.PROJECT,
+        scopeId,
+        0);
   }
 
-  public interface HookTriggersGetter {
-    List<RepositoryHookTrigger> get();
+  /**
+   * Address of the hook script of a scope: the tag of its content, which is also the key of plugin
+   * settings it was stored by previously, and columns of its mapping.
+   */
+  private static class ScriptPath {
+    private final String path;
+    private final HookScriptIndex.Kind kind;
+    private final int projectId;
+    private final ScopeType parentType;
+    private final int parentId;
+    private final int repositoryId;
+
+    ScriptPath(
+        String path,
+        HookScriptIndex.Kind kind,
+        int projectId,
+        ScopeType parentType,
+        int parentId,
+        int repositoryId) {
+      this.path = path;
+      this.kind = kind;
+      this.projectId = projectId;
+      this.parentType = parentType;
+      this.parentId = parentId;
+      this.repositoryId = repositoryId;
+    }
+
+    String getPath() {
+      return path;
+    }
+
+    HookScriptIndex.Kind getKind() {
+      return kind;
+    }
+
+    int getProjectId() {
+      return projectId;
+    }
+
+    ScopeType getParentType() {
+      return parentType;
+    }
+
+    int getParentId() {
+      return parentId;
+    }
+
+    int getRepositoryId() {
+      return repositoryId;
+    }
+
+    long getKey() {
+      return HookScriptIndex.key(parentId, repositoryId);
+    }
   }
 
-  public interface CallbackLogDelete {
-    void onSuccess(String hookKey, Long id);
+  /**
+   * Mapping of every scope which has a hook script: the hook script id, the fingerprint of the
+   * script content and triggers and, for shared scripts, the hash of the content they are shared
+   * by. Previous versions stored it in plugin settings, the oldest ones as the bare id.
+   */
+  private static class StoredHookScript {
+    private final Long id;
+    private final String fingerprint;
+    private final String contentHash;
+
+    StoredHookScript(Long id, String fingerprint, String contentHash) {
+      this.id = id;
+      this.fingerprint = fingerprint;
+      this.contentHash = contentHash;
+    }
+
+    static StoredHookScript parse(String value) {
+      String[] chunks = value.split(":");
+      return new StoredHookScript(
+          Long.valueOf(chunks[0]),
+          chunks.length > 1 ? chunks[1] : null,
+          chunks.length > 2 ? chunks[2] : null);
+    }
 
-    void onMissingId(String hookKey);
+    static StoredHookScript of(HookScriptMapping mapping) {
+      return new StoredHookScript(
+          mapping.getScriptId(), mapping.getFingerprint(), mapping.getContentHash());
+    }
 
-    void onMissingScript(String hookKey, Long id);
+    Long getId() {
+      return id;
+    }
+
+    String getFingerprint() {
+      return fingerprint;
+    }
+
+    String getContentHash() {
+      return contentHash;
+    }
+
+    boolean isShared() {
+      return contentHash != null;
+    }
   }
 }
@@ -0,0 +1,294 @@
+package com.ngs.stash.externalhooks.hook;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.ngs.stash.externalhooks.Const;
+import com.ngs.stash.externalhooks.util.LongObjectMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node-local index of hook script mappings, so looking up the hook script of a scope doesn't
+ * query the database every time. Entries are keyed by the hook, the kind of the parent scope and
+ * ids of the scopes packed into a long; scopes which have no hook script are indexed as well.
+ *
+ * <p>Entries are grouped by projects: the first lookup in a project loads mappings of all hooks on
+ * the project and its repositories by a single query, the global scope is loaded as project 0.
+ * Only the least recently used projects are kept. Until mappings are migrated from plugin
+ * settings a loaded project might lack some of them, so missing entries are looked up one by one.
+ *
+ * <p>Writes made on other nodes are noticed by a generation of every project which a node
+ * publishes with each write to the project. A node checks the generation of an indexed project at
+ * most once per second and drops only that project when another node published a generation, so
+ * nodes which write other projects at the same time, e.g. shards of a factory run, keep the rest.
+ *
+ * <p>The index is owned by the installer and shared by its scripts and their copies. Values are
+ * opaque to the index: scripts give the loader of their values on every lookup.
+ */
+public class HookScriptIndex {
+  private static Logger log = LoggerFactory.getLogger(HookScriptIndex.class);
+
+  private static final String GENERATION_KEY = Const.PLUGIN_KEY + ":index:generation:";
+
+  private static final int MAX_PROJECTS = 512;
+
+  private static final long CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  // two nodes publishing at the same moment might miss each other, so a
+  // project is never older than that
+  private static final long MAX_AGE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  private static final Object MISSING = new Object();
+
+  enum Kind {
+    REPOSITORY,
+    PROJECT_REPOSITORY,
+    GLOBAL_REPOSITORY,
+    SCOPED,
+    LEGACY_PROJECT
+  }
+
+  interface Loader<V> {
+    /**
+     * Loads mappings of all hooks on the project and its repositories.
+     *
+     * @return true if these are all mappings there are
+     */
+    boolean load(int projectId, Entries<V> entries);
+  }
+
+  interface Entries<V> {
+    void put(String hookKey, Kind kind, long key, V value);
+  }
+
+  private final PluginSettings pluginSettings;
+  private final LongObjectMap<Project> projects = new LongObjectMap<>();
+
+  // bumped by every write, so projects loaded meanwhile aren't indexed
+  private long version;
+
+  public HookScriptIndex(PluginSettingsFactory pluginSettingsFactory) {
+    this.pluginSettings = pluginSettingsFactory.createGlobalSettings();
+  }
+
+  /** Packs ids of a parent scope and a scope into a single key. */
+  static long key(int parent, int scope) {
+    return ((long) parent << 32) | (scope & 0xFFFFFFFFL);
+  }
+
+  /**
+   * @param loader loads the project if it's not indexed yet
+   * @return null if the entry is not indexed, empty if the scope has no hook script
+   */
+  <V> Optional<V> get(String hookKey, Kind kind, int projectId, long key, Loader<V> loader) {
+    long now = System.nanoTime();
+
+    Project indexed;
+    synchronized (this) {
+      indexed = projects.get(projectId);
+      if (indexed != null && now - indexed.checkedAt < CHECK_INTERVAL_NANOS) {
+        return indexed.get(hookKey, kind, key);
+      }
+    }
+
+    if (indexed != null && isCurrent(projectId, indexed, now)) {
+      synchronized (this) {
+        return indexed.get(hookKey, kind, key);
+      }
+    }
+
+    long loadedVersion;
+    synchronized (this) {
+      // another node wrote the project, so only this one is loaded again
+      if (indexed != null && projects.get(projectId) == indexed) {
+        projects.remove(projectId);
+      }
+
+      loadedVersion = version;
+    }
+
+    Project project = fetch(projectId, loader);
+    if (project == null) {
+      return null;
+    }
+
+    synchronized (this) {
+      if (version != loadedVersion) {
+        return null;
+      }
+
+      projects.put(projectId, project);
+      if (projects.size() > MAX_PROJECTS) {
+        evict();
+      }
+
+      return project.get(hookKey, kind, key);
+    }
+  }
+
+  /**
+   * Indexes the value read from the database unless it has been written meanwhile.
+   *
+   * @param value null if the scope has no hook script
+   */
+  synchronized void load(String hookKey, Kind kind, int projectId, long key, Object value) {
+    Project project = projects.get(projectId);
+    if (project == null) {
+      return;
+    }
+
+    LongObjectMap<Object> entries = project.getEntries(hookKey, kind);
+    if (entries.get(key) == null) {
+      entries.put(key, value == null ? MISSING : value);
+    }
+  }
+
+  /**
+   * Indexes the value written to the database, other nodes will drop the project.
+   *
+   * @param value null if the hook script of the scope is removed
+   */
+  void store(String hookKey, Kind kind, int projectId, long key, Object value) {
+    String generation = UUID.randomUUID().toString();
+    try {
+      pluginSettings.put(GENERATION_KEY + projectId, generation);
+    } catch (Exception e) {
+      log.warn("Unable to publish hook script index of project {}: {}", projectId, e.toString());
+      generation = null;
+    }
+
+    synchronized (this) {
+      Project project = projects.get(projectId);
+      if (project != null) {
+        project.getEntries(hookKey, kind).put(key, value == null ? MISSING : value);
+        project.generation = generation;
+      }
+
+      version++;
+    }
+  }
+
+  /** @return true if no other node wrote the project since it was loaded */
+  private boolean isCurrent(int projectId, Project project, long now) {
+    if (now - project.loadedAt > MAX_AGE_NANOS) {
+      return false;
+    }
+
+    String current;
+    try {
+      current = getGeneration(projectId);
+    } catch (Exception e) {
+      log.warn("Unable to check hook script index of project {}: {}", projectId, e.toString());
+      return false;
+    }
+
+    synchronized (this) {
+      if (!Objects.equals(current, project.generation)) {
+        return false;
+      }
+
+      project.checkedAt = now;
+      return true;
+    }
+  }
+
+  private String getGeneration(int projectId) {
+    Object value = pluginSettings.get(GENERATION_KEY + projectId);
+
+    return value == null ? null : value.toString();
+  }
+
+  private <V> Project fetch(int projectId, Loader<V> loader) {
+    Project project = new Project();
+
+    try {
+      // read before the mappings, so writes made meanwhile are noticed later
+      project.generation = getGeneration(projectId);
+      project.complete = loader.load(
+          projectId,
+          (hookKey, kind, key, value) -> project.getEntries(hookKey, kind).put(key, value));
+    } catch (Exception e) {
+      log.warn("Unable to load hook script mappings of project {}: {}", projectId, e.toString());
+      return null;
+    }
+
+    return project;
+  }
+
+  private void evict() {
+    // dropping the least recently used quarter at once, so projects aren't
+    // sorted on every load
+    long[] ids = new long[projects.size()];
+    long[] usedAt = new long[projects.size()];
+    int[] count = new int[1];
+    projects.forEach((id, project) -> {
+      ids[count[0]] = id;
+      usedAt[count[0]] = project.usedAt;
+      count[0]++;
+    });
+
+    long[] sorted = usedAt.clone();
+    Arrays.sort(sorted);
+    long threshold = sorted[sorted.length / 4];
+
+    for (int i = 0; i < ids.length; i++) {
+      if (usedAt[i] <= threshold) {
+        projects.remove(ids[i]);
+      }
+    }
+  }
+
+  /** Drops all indexed projects, they are loaded again on the next lookup. */
+  public synchronized void clear() {
+    projects.clear();
+    version++;
+  }
+
+  /** Entries of all hooks on a single project. */
+  private class Project {
+    private final Map<String, LongObjectMap<Object>[]> hooks = new HashMap<>();
+    private boolean complete;
+    private long usedAt = System.nanoTime();
+    private long loadedAt = usedAt;
+    private long checkedAt = usedAt;
+
+    // published by the last write to the project, null if never written
+    private String generation;
+
+    @SuppressWarnings("unchecked")
+    <V> Optional<V> get(String hookKey, Kind kind, long key) {
+      usedAt = System.nanoTime();
+
+      LongObjectMap<Object>[] kinds = hooks.get(hookKey);
+      Object value = kinds == null ? null : kinds[kind.ordinal()].get(key);
+      if (value == null) {
+        return complete ? Optional.empty() : null;
+      }
+
+      return value == MISSING ? Optional.empty() : Optional.of((V) value);
+    }
+
+    @SuppressWarnings("unchecked")
+    LongObjectMap<Object> getEntries(String hookKey, Kind kind) {
+      LongObjectMap<Object>[] kinds = hooks.computeIfAbsent(hookKey, key -> {
+        LongObjectMap<Object>[] maps = new LongObjectMap[Kind.values().length];
+        for (int i = 0; i < maps.length; i++) {
+          maps[i] = new LongObjectMap<>();
+        }
+
+        return maps;
+      });
+
+      return kinds[kind.ordinal()];
+    }
+  }
+}
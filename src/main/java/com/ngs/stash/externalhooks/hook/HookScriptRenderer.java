@@ -0,0 +1,187 @@
+package com.ngs.stash.externalhooks.hook;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.atlassian.bitbucket.setting.Settings;
+import com.atlassian.plugin.util.ClassLoaderUtils;
+import com.google.common.base.Charsets;
+import com.google.common.escape.Escaper;
+import com.google.common.escape.Escapers;
+import com.ngs.stash.externalhooks.ExecutableIndex;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Renders contents of hook scripts out of hook settings. Fixed parts of the script are built once
+ * and rendered commands are kept by a canonical fingerprint of settings which they depend on, so
+ * scopes which share the same settings don't resolve the executable and escape params again. The
+ * tag differs for every scope, so it's added to the cached command afterwards.
+ *
+ * <p>Only the least recently used commands are kept.
+ */
+public class HookScriptRenderer {
+  private static final int CAPACITY = 256;
+
+  private static final Escaper SHELL_ESCAPE =
+      Escapers.builder().addEscape('\'', "'\"'\"'").build();
+
+  // dumping stdin to a temporary file, running the executable in a subshell
+  // and deleting stdin after finishing the job
+  private static final String ASYNC_HEAD = "stdin=\"$(mktemp)\"\n"
+      + "cat >\"$stdin\"\n"
+      + "(\n"
+      + "    trap \"rm \\\"$stdin\\\"\" EXIT\n"
+      + "    ";
+
+  // subshell end: closing all fds and starting subshell in background
+  private static final String ASYNC_TAIL = " <\"$stdin\"\n" + ") >/dev/null 2>&1 <&- &\n";
+
+  private final String header;
+  private final ExecutableIndex executables;
+
+  private final Map<String, String> commands = new LinkedHashMap<String, String>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+      return size() > CAPACITY;
+    }
+  };
+
+  /** @param executables resolves the path of the executable given in settings */
+  public HookScriptRenderer(ExecutableIndex executables) throws IOException {
+    this.header =
+        getResource("hook-script.template.bash") + "\n\n# com.ngs.stash.externalhooks tag: ";
+    this.executables = executables;
+  }
+
+  private String getResource(String name) throws IOException {
+    InputStream resource = ClassLoaderUtils.getResourceAsStream(name, this.getClass());
+    if (resource == null) {
+      throw new IllegalArgumentException("resource file not found: " + name);
+    }
+
+    StringBuilder stringBuilder = new StringBuilder();
+    String line = null;
+
+    try (BufferedReader bufferedReader =
+        new BufferedReader(new InputStreamReader(resource, Charsets.UTF_8))) {
+      while ((line = bufferedReader.readLine()) != null) {
+        stringBuilder.append(line).append("\n");
+      }
+    }
+
+    return stringBuilder.toString();
+  }
+
+  /** @return script with the given tag which runs the executable given in settings */
+  Script render(String tag, Settings settings) {
+    String exe = settings.getString("exe", "");
+    boolean safePath = settings.getBoolean("safe_path", false);
+    boolean async = settings.getBoolean("async", false);
+    String params = settings.getString("params");
+
+    String fingerprint = getFingerprint(exe, safePath, async, params);
+
+    String command;
+    synchronized (commands) {
+      command = commands.get(fingerprint);
+    }
+
+    if (command == null) {
+      // rendering the same command twice is cheaper than holding the lock
+      // while resolving the executable
+      command = render(exe, safePath, async, params);
+
+      synchronized (commands) {
+        commands.put(fingerprint, command);
+      }
+    }
+
+    // the content is the same as if it was rendered at once, so fingerprints of
+    // stored hook scripts are still valid
+    StringBuilder builder =
+        new StringBuilder(header.length() + tag.length() + command.length() + 2);
+    builder.append(header).append(tag).append("\n\n").append(command);
+
+    return new Script(fingerprint, builder.toString());
+  }
+
+  private String render(String exe, boolean safePath, boolean async, String params) {
+    File executable = executables.resolve(exe, safePath);
+    if (executable == null) {
+      throw new IllegalArgumentException("invalid path to executable: " + exe);
+    }
+
+    StringBuilder builder = new StringBuilder(256);
+
+    if (async) {
+      builder.append(ASYNC_HEAD);
+    }
+
+    builder.append('\'').append(SHELL_ESCAPE.escape(executable.toString())).append('\'');
+
+    if (params != null && params.trim().length() != 0) {
+      for (String arg : params.split("\r\n")) {
+        if (arg.length() != 0) {
+          builder.append(" '").append(SHELL_ESCAPE.escape(arg)).append('\'');
+        }
+      }
+    }
+
+    if (async) {
+      builder.append(ASYNC_TAIL);
+    }
+
+    builder.append("\n");
+
+    return builder.toString();
+  }
+
+  /**
+   * Every value is prefixed by its length, so different settings never have the same
+   * fingerprint.
+   */
+  private static String getFingerprint(
+      String exe, boolean safePath, boolean async, String params) {
+    StringBuilder builder = new StringBuilder();
+    builder.append(exe.length()).append(':').append(exe);
+    builder.append(safePath ? 's' : '-');
+    builder.append(async ? 'a' : '-');
+    if (params != null) {
+      builder.append(params.length()).append(':').append(params);
+    }
+
+    return builder.toString();
+  }
+
+  /** Rendered script, its content hash is computed once. */
+  static class Script {
+    private final String fingerprint;
+    private final String content;
+    private final String contentHash;
+
+    Script(String fingerprint, String content) {
+      this.fingerprint = fingerprint;
+      this.content = content;
+      this.contentHash = DigestUtils.sha256Hex(content);
+    }
+
+    /** @return canonical fingerprint of settings the script is rendered from */
+    String getFingerprint() {
+      return fingerprint;
+    }
+
+    String getContent() {
+      return content;
+    }
+
+    String getContentHash() {
+      return contentHash;
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package com.ngs.stash.externalhooks.rest;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.ngs.stash.externalhooks.dao.ExternalHooksSettingsDao;
+
+@XmlRootElement
+public class CollectorStateResponse {
+  @XmlElement
+  private long reclaimed;
+
+  @XmlElement
+  private int cursor;
+
+  @XmlElement(name = "last_run")
+  private long lastRun;
+
+  @XmlElement(name = "last_scanned")
+  private long lastScanned;
+
+  @XmlElement(name = "last_reclaimed")
+  private long lastReclaimed;
+
+  public CollectorStateResponse(ExternalHooksSettingsDao settingsDao) {
+    reclaimed = settingsDao.getCollectorReclaimed();
+    cursor = settingsDao.getCollectorCursor();
+    lastRun = settingsDao.getCollectorLastRun();
+    lastScanned = settingsDao.getCollectorLastScanned();
+    lastReclaimed = settingsDao.getCollectorLastReclaimed();
+  }
+}
@@ -0,0 +1,24 @@
+package com.ngs.stash.externalhooks.rest;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.ngs.stash.externalhooks.HookEventQueue;
+
+@XmlRootElement
+public class EventQueueResponse {
+  @XmlElement
+  private int depth;
+
+  @XmlElement
+  private int capacity;
+
+  @XmlElement
+  private long coalesced;
+
+  public EventQueueResponse(HookEventQueue queue) {
+    depth = queue.getDepth();
+    capacity = queue.getCapacity();
+    coalesced = queue.getCoalesced();
+  }
+}
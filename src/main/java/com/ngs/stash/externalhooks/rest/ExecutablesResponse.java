@@ -0,0 +1,50 @@
+package com.ngs.stash.externalhooks.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.ngs.stash.externalhooks.ExecutableIndex;
+
+@XmlRootElement
+public class ExecutablesResponse {
+  @XmlElement
+  private List<Executable> executables = new ArrayList<>();
+
+  /** @param details whether to include modification times and checksums of executables */
+  public ExecutablesResponse(ExecutableIndex index, boolean details) {
+    for (ExecutableIndex.Entry entry : index.list()) {
+      executables.add(new Executable(entry, details));
+    }
+  }
+
+  @XmlRootElement
+  public static class Executable {
+    @XmlElement
+    private String path;
+
+    @XmlElement
+    private long size;
+
+    @XmlElement
+    private Long modified;
+
+    @XmlElement
+    private boolean executable;
+
+    @XmlElement
+    private String checksum;
+
+    public Executable(ExecutableIndex.Entry entry, boolean details) {
+      path = entry.getPath();
+      size = entry.getSize();
+      executable = entry.isExecutable();
+      if (details) {
+        modified = entry.getModified();
+        checksum = entry.getChecksum();
+      }
+    }
+  }
+}
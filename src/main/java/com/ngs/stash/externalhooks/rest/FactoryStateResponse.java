@@ -16,18 +16,66 @@ public class FactoryStateResponse {
   @XmlElement
   private boolean finished;
 
+  @XmlElement
+  private String status;
+
+  @XmlElement
+  private String phase;
+
+  @XmlElement
+  private int shards;
+
   @XmlElement
   private int current;
 
   @XmlElement
   private int total;
 
+  @XmlElement(name = "total_estimated")
+  private boolean totalEstimated;
+
+  @XmlElement
+  private int eta;
+
+  @XmlElement
+  private int rate;
+
+  @XmlElement(name = "dry_run")
+  private boolean dryRun;
+
+  @XmlElement
+  private int created;
+
+  @XmlElement
+  private int updated;
+
+  @XmlElement
+  private int deleted;
+
+  @XmlElement
+  private int unchanged;
+
+  @XmlElement
+  private int failed;
+
   public FactoryStateResponse(FactoryState state) {
     id = state.getID();
     started = state.getStarted();
     finished = state.getFinished();
+    status = state.getStatus();
+    phase = state.getPhase();
+    shards = state.getShards();
     current = state.getCurrent();
     total = state.getTotal();
+    totalEstimated = state.getTotalEstimated();
+    eta = state.getEta();
+    rate = state.getRate();
+    dryRun = state.getDryRun();
+    created = state.getCreated();
+    updated = state.getUpdated();
+    deleted = state.getDeleted();
+    unchanged = state.getUnchanged();
+    failed = state.getFailed();
   }
 
   public FactoryStateResponse(int id) {
@@ -0,0 +1,62 @@
+package com.ngs.stash.externalhooks.rest;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.ngs.stash.externalhooks.ao.FanOutState;
+
+@XmlRootElement
+public class FanOutResponse {
+  @XmlElement
+  private int id;
+
+  @XmlElement
+  private String name;
+
+  @XmlElement
+  private String project;
+
+  @XmlElement
+  private boolean finished;
+
+  @XmlElement
+  private int current;
+
+  @XmlElement
+  private int total;
+
+  @XmlElement
+  private int failed;
+
+  @XmlElement
+  private int eta;
+
+  public FanOutResponse(FanOutState state) {
+    id = state.getID();
+    name = state.getName();
+    project = state.getProject();
+    finished = state.getFinished();
+    current = state.getCurrent();
+    total = state.getTotal();
+    failed = state.getFailed();
+    eta = getEta(state);
+  }
+
+  /** @return estimated seconds left or -1 if it's too early to tell */
+  private static int getEta(FanOutState state) {
+    int done = state.getCurrent();
+    if (done == 0 || state.getStartedAt() == null) {
+      return -1;
+    }
+
+    long end = state.getFinished() && state.getFinishedAt() != null
+        ? state.getFinishedAt().getTime()
+        : System.currentTimeMillis();
+    double perRepository = (double) (end - state.getStartedAt().getTime()) / done;
+
+    return (int) Math.ceil(
+        (state.getTotal() - done) * perRepository / TimeUnit.SECONDS.toMillis(1));
+  }
+}
@@ -1,10 +1,9 @@
 package com.ngs.stash.externalhooks.rest;
 
-import java.io.IOException;
-import java.io.Serializable;
-import java.util.Date;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.Objects;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
@@ -16,122 +15,53 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
-import com.atlassian.activeobjects.external.ActiveObjects;
-import com.atlassian.bitbucket.auth.AuthenticationContext;
-import com.atlassian.bitbucket.cluster.ClusterService;
-import com.atlassian.bitbucket.hook.repository.RepositoryHookService;
-import com.atlassian.bitbucket.hook.script.HookScriptService;
 import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.permission.PermissionService;
-import com.atlassian.bitbucket.project.Project;
-import com.atlassian.bitbucket.project.ProjectService;
-import com.atlassian.bitbucket.repository.Repository;
-import com.atlassian.bitbucket.repository.RepositoryService;
 import com.atlassian.bitbucket.scope.GlobalScope;
-import com.atlassian.bitbucket.scope.ProjectScope;
-import com.atlassian.bitbucket.scope.RepositoryScope;
-import com.atlassian.bitbucket.server.StorageService;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.setting.SettingsBuilder;
-import com.atlassian.bitbucket.user.SecurityService;
-import com.atlassian.bitbucket.user.UserService;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
-import com.atlassian.scheduler.JobRunner;
-import com.atlassian.scheduler.JobRunnerRequest;
-import com.atlassian.scheduler.JobRunnerResponse;
-import com.atlassian.scheduler.SchedulerService;
-import com.atlassian.scheduler.SchedulerServiceException;
-import com.atlassian.scheduler.config.JobConfig;
-import com.atlassian.scheduler.config.JobId;
-import com.atlassian.scheduler.config.JobRunnerKey;
-import com.atlassian.scheduler.config.RunMode;
-import com.atlassian.scheduler.config.Schedule;
-import com.atlassian.upm.api.license.PluginLicenseManager;
+import com.ngs.stash.externalhooks.BitbucketEventListener;
 import com.ngs.stash.externalhooks.Const;
+import com.ngs.stash.externalhooks.ExternalHooksService;
 import com.ngs.stash.externalhooks.ExternalHooksSettings;
-import com.ngs.stash.externalhooks.GlobalHooks;
+import com.ngs.stash.externalhooks.HookEventQueue;
 import com.ngs.stash.externalhooks.HookInstaller;
-import com.ngs.stash.externalhooks.HooksFactory;
+import com.ngs.stash.externalhooks.HooksFactoryJob;
 import com.ngs.stash.externalhooks.SimpleSettingsBuilder;
 import com.ngs.stash.externalhooks.SimpleSettingsValidationErrors;
 import com.ngs.stash.externalhooks.ao.FactoryState;
+import com.ngs.stash.externalhooks.ao.FanOutState;
 import com.ngs.stash.externalhooks.ao.GlobalHookSettings;
 import com.ngs.stash.externalhooks.dao.ExternalHooksSettingsDao;
-import com.ngs.stash.externalhooks.dao.FactoryStateDao;
 import com.ngs.stash.externalhooks.dao.GlobalHookSettingsDao;
 import com.ngs.stash.externalhooks.hook.ExternalHookScript;
-import com.ngs.stash.externalhooks.util.Walker;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import io.atlassian.util.concurrent.atomic.AtomicInteger;
 
 @Path("/")
-public class Rest implements JobRunner {
-  private static final Logger log = LoggerFactory.getLogger(Rest.class);
-
-  private SchedulerService schedulerService;
+public class Rest {
   private PermissionService permissionService;
-  private SecurityService securityService;
 
-  private FactoryStateDao factoryStateDao;
   private ExternalHooksSettingsDao settingsDao;
-  private Walker walker;
   private GlobalHookSettingsDao globalHookSettingsDao;
-  // private RepositoryHookService repositoryHookService;
   private HookInstaller hookInstaller;
-  private HooksFactory hooksFactory;
+  private HooksFactoryJob hooksFactoryJob;
+  private HookEventQueue eventQueue;
 
   public Rest(
-      @ComponentImport AuthenticationContext authenticationContext,
       @ComponentImport GlobalHookSettingsDao globalHookSettingsDao,
       @ComponentImport HookInstaller hookInstaller,
-      @ComponentImport UserService userService,
-      @ComponentImport ActiveObjects ao,
-      @ComponentImport RepositoryService repositoryService,
-      @ComponentImport SchedulerService schedulerService,
-      @ComponentImport RepositoryHookService repositoryHookService,
-      @ComponentImport ProjectService projectService,
+      @ComponentImport ExternalHooksService externalHooksService,
       @ComponentImport PluginSettingsFactory pluginSettingsFactory,
-      @ComponentImport HookScriptService hookScriptService,
-      @ComponentImport PluginLicenseManager pluginLicenseManager,
-      @ComponentImport ClusterService clusterService,
-      @ComponentImport SecurityService securityService,
       @ComponentImport("permissions") PermissionService permissionService,
-      @ComponentImport StorageService storageService)
-      throws IOException {
+      @ComponentImport BitbucketEventListener bitbucketEventListener) {
     this.globalHookSettingsDao = globalHookSettingsDao;
     this.permissionService = permissionService;
-    this.schedulerService = schedulerService;
-    this.securityService = securityService;
-    // this.repositoryHookService = repositoryHookService;
     this.hookInstaller = hookInstaller;
-    //
-    // Unfortunately, no way to @ComponentImport it because Named() used here.
-    // Consider it to replace with lifecycle aware listener.
-    this.hooksFactory = new HooksFactory(
-        repositoryHookService,
-        new HookInstaller(
-            userService,
-            projectService,
-            repositoryService,
-            repositoryHookService,
-            authenticationContext,
-            permissionService,
-            pluginLicenseManager,
-            clusterService,
-            storageService,
-            hookScriptService,
-            pluginSettingsFactory,
-            securityService));
+    this.hooksFactoryJob = externalHooksService.getHooksFactoryJob();
+    this.eventQueue = bitbucketEventListener.getQueue();
 
     this.settingsDao = new ExternalHooksSettingsDao(pluginSettingsFactory);
-
-    this.factoryStateDao = new FactoryStateDao(ao);
-
-    this.walker = new Walker(userService, projectService, repositoryService);
   }
 
   private boolean isSystemAdmin() {
@@ -169,11 +99,27 @@ public class Rest implements JobRunner {
       return Response.status(401).build();
     }
 
+    ExternalHooksSettings before = settingsDao.getSettings();
+
     settingsDao.save(settings);
 
+    // hook scripts have triggers of their own, so changed triggers are pushed to them; contents of
+    // hook scripts are unchanged, so the factory only configures them
+    if (!isSameTriggers(before, settingsDao.getSettings())) {
+      FactoryState state = hooksFactoryJob.apply();
+
+      return Response.ok(new FactoryStateResponse(state.getID())).build();
+    }
+
     return Response.ok().build();
   }
 
+  private static boolean isSameTriggers(ExternalHooksSettings a, ExternalHooksSettings b) {
+    return Objects.equals(a.triggers.pre_receive, b.triggers.pre_receive)
+        && Objects.equals(a.triggers.post_receive, b.triggers.post_receive)
+        && Objects.equals(a.triggers.merge_check, b.triggers.merge_check);
+  }
+
   @GET
   @Produces({MediaType.APPLICATION_JSON})
   @Consumes({MediaType.APPLICATION_JSON})
@@ -183,11 +129,63 @@ public class Rest implements JobRunner {
       return Response.status(401).build();
     }
 
-    FactoryState state = factoryStateDao.find(id);
+    // progress of the run on this node is fresher than what is flushed
+    FactoryState state = hooksFactoryJob.getState(id);
+    if (state == null) {
+      return Response.status(404).build();
+    }
 
     return Response.ok(new FactoryStateResponse(state)).build();
   }
 
+  @POST
+  @Produces({MediaType.APPLICATION_JSON})
+  @Consumes({MediaType.APPLICATION_JSON})
+  @Path("/factory/state/{id}/pause")
+  public Response pauseFactory(@PathParam("id") Integer id) {
+    if (!isSystemAdmin()) {
+      return Response.status(401).build();
+    }
+
+    return getFactoryStateResponse(hooksFactoryJob.pause(id));
+  }
+
+  @POST
+  @Produces({MediaType.APPLICATION_JSON})
+  @Consumes({MediaType.APPLICATION_JSON})
+  @Path("/factory/state/{id}/resume")
+  public Response resumeFactory(@PathParam("id") Integer id) {
+    if (!isSystemAdmin()) {
+      return Response.status(401).build();
+    }
+
+    return getFactoryStateResponse(hooksFactoryJob.resume(id));
+  }
+
+  @POST
+  @Produces({MediaType.APPLICATION_JSON})
+  @Consumes({MediaType.APPLICATION_JSON})
+  @Path("/factory/state/{id}/cancel")
+  public Response cancelFactory(@PathParam("id") Integer id) {
+    if (!isSystemAdmin()) {
+      return Response.status(401).build();
+    }
+
+    return getFactoryStateResponse(hooksFactoryJob.cancel(id));
+  }
+
+  private Response getFactoryStateResponse(FactoryState state) {
+    if (state == null) {
+      return Response.status(404).build();
+    }
+
+    return Response.ok(new FactoryStateResponse(state)).build();
+  }
+
+  /**
+   * Starts applying settings on every scope. If a run is already in progress, it will be repeated
+   * once it's finished instead and its id is returned.
+   */
   @POST
   @Produces({MediaType.APPLICATION_JSON})
   @Consumes({MediaType.APPLICATION_JSON})
@@ -197,13 +195,107 @@ public class Rest implements JobRunner {
       return Response.status(401).build();
     }
 
-    FactoryState state = factoryStateDao.create();
+    FactoryState state = hooksFactoryJob.apply();
+
+    return Response.ok(new FactoryStateResponse(state.getID())).build();
+  }
+
+  /**
+   * Computes which hook scripts would be created, updated or deleted by {@link #applySettings()}
+   * without changing anything. The plan is reported via {@link #getFactoryState(Integer)}.
+   */
+  @POST
+  @Produces({MediaType.APPLICATION_JSON})
+  @Consumes({MediaType.APPLICATION_JSON})
+  @Path("/factory/plan")
+  public Response planSettings() {
+    if (!isSystemAdmin()) {
+      return Response.status(401).build();
+    }
 
-    scheduleCreatingHooks(state.getID());
+    FactoryState state = hooksFactoryJob.plan();
 
     return Response.ok(new FactoryStateResponse(state.getID())).build();
   }
 
+  /** Reports how much work caused by events is waiting to be processed. */
+  @GET
+  @Produces({MediaType.APPLICATION_JSON})
+  @Path("/events/queue")
+  public Response getEventQueue() {
+    if (!isSystemAdmin()) {
+      return Response.status(401).build();
+    }
+
+    return Response.ok(new EventQueueResponse(eventQueue)).build();
+  }
+
+  /**
+   * Reports progress of changes of project hooks which are being applied on repositories of their
+   * projects, the latest first.
+   */
+  @GET
+  @Produces({MediaType.APPLICATION_JSON})
+  @Path("/fanout")
+  public Response getFanOuts() {
+    if (!isSystemAdmin()) {
+      return Response.status(401).build();
+    }
+
+    List<FanOutResponse> tasks = new ArrayList<>();
+    for (FanOutState state : hookInstaller.getProjectFanOut().getStates()) {
+      tasks.add(new FanOutResponse(state));
+    }
+
+    return Response.ok(tasks).build();
+  }
+
+  @GET
+  @Produces({MediaType.APPLICATION_JSON})
+  @Path("/fanout/{id}")
+  public Response getFanOut(@PathParam("id") Integer id) {
+    if (!isSystemAdmin()) {
+      return Response.status(401).build();
+    }
+
+    FanOutState state = hookInstaller.getProjectFanOut().getState(id);
+    if (state == null) {
+      return Response.status(404).build();
+    }
+
+    return Response.ok(new FanOutResponse(state)).build();
+  }
+
+  /** Reports how many orphaned hook scripts were reclaimed by the collector. */
+  @GET
+  @Produces({MediaType.APPLICATION_JSON})
+  @Path("/collector")
+  public Response getCollectorState() {
+    if (!isSystemAdmin()) {
+      return Response.status(401).build();
+    }
+
+    return Response.ok(new CollectorStateResponse(settingsDao)).build();
+  }
+
+  /**
+   * Lists files in the safe directory as they are seen by the index on this node, so forms don't
+   * make anyone type paths of executables blindly.
+   */
+  @GET
+  @Produces({MediaType.APPLICATION_JSON})
+  @Path("/executables")
+  public Response getExecutables() {
+    // anyone who is able to configure hooks of some repository
+    if (!permissionService.hasAnyUserPermission(Permission.REPO_ADMIN)) {
+      return Response.status(401).build();
+    }
+
+    // modification times and checksums tell what is deployed to the home directory
+    return Response.ok(new ExecutablesResponse(hookInstaller.getExecutables(), isSystemAdmin()))
+        .build();
+  }
+
   @PUT
   @Path("/global-hooks/{hookKey}")
   @Produces({MediaType.APPLICATION_JSON})
@@ -258,7 +350,7 @@ public class Rest implements JobRunner {
     settings.setEnabled(schema.enabled);
     settings.setFilterPersonalRepositories(schema.filterPersonalRepositories);
 
-    settings.save();
+    this.globalHookSettingsDao.save(settings);
 
     return Response.ok(new HashMap<String, String>()).build();
   }
@@ -285,107 +377,4 @@ public class Rest implements JobRunner {
     schema.filterPersonalRepositories = settings.getFilterPersonalRepositories();
     return Response.ok(schema).build();
   }
-
-  private void scheduleCreatingHooks(int stateId) {
-    JobRunnerKey runner = JobRunnerKey.of("external-hooks-factory-runner");
-    JobId id = JobId.of("external-hooks-factory-job");
-
-    this.schedulerService.registerJobRunner(runner, this);
-
-    Map<String, Serializable> parameters = new HashMap<String, Serializable>();
-    parameters.put("state_id", stateId);
-
-    JobConfig job = JobConfig.forJobRunnerKey(runner)
-        .withSchedule(Schedule.runOnce(new Date()))
-        .withRunMode(RunMode.RUN_ONCE_PER_CLUSTER)
-        .withParameters(parameters);
-
-    try {
-      this.schedulerService.scheduleJob(id, job);
-    } catch (SchedulerServiceException e) {
-      log.error("Unable to schedule re-creating External Hooks", e);
-    }
-  }
-
-  public JobRunnerResponse runJob(JobRunnerRequest request) {
-    JobConfig config = request.getJobConfig();
-    Map<String, Serializable> parameters = config.getParameters();
-    int stateId = (int) parameters.get("state_id");
-
-    FactoryState state = factoryStateDao.find(Integer.valueOf(stateId));
-    if (state == null) {
-      log.error("scheduled factory state not found: {}", stateId);
-      return JobRunnerResponse.failed("scheduled factory state not found");
-    }
-
-    securityService
-        .withPermission(Permission.SYS_ADMIN, "External Hook Factory: create hooks")
-        .call(() -> {
-          createHooks(state);
-          return null;
-        });
-
-    return JobRunnerResponse.success();
-  }
-
-  private void createHooks(FactoryState state) {
-    GlobalHooks globalHooks = new GlobalHooks(globalHookSettingsDao.find());
-    state.setStarted(true);
-    state.save();
-
-    AtomicInteger total = new AtomicInteger();
-
-    walker.walk(new Walker.Callback() {
-      @Override
-      public void onProject(Project project) {
-        total.incrementAndGet();
-      }
-
-      @Override
-      public void onRepository(Repository repository) {
-        total.incrementAndGet();
-      }
-    });
-
-    state.setTotal(total.get());
-    state.save();
-
-    // adding a small delay in order to spread the cpu/io load if bb instance
-    // has a lot of hooks installed
-    int millisDelay = 10;
-
-    AtomicInteger current = new AtomicInteger();
-    walker.walk(new Walker.Callback() {
-      @Override
-      public void onProject(Project project) {
-        hooksFactory.apply(new ProjectScope(project), globalHooks);
-
-        state.setCurrent(current.incrementAndGet());
-        state.save();
-
-        delay(millisDelay);
-      }
-
-      @Override
-      public void onRepository(Repository repository) {
-        hooksFactory.apply(new RepositoryScope(repository), globalHooks);
-
-        state.setCurrent(current.incrementAndGet());
-        state.save();
-
-        delay(millisDelay);
-      }
-    });
-
-    state.setFinished(true);
-    state.save();
-  }
-
-  private void delay(int ms) {
-    try {
-      Thread.sleep(ms);
-    } catch (InterruptedException ex) {
-      Thread.currentThread().interrupt();
-    }
-  }
 }
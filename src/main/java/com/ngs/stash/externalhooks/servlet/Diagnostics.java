@@ -20,10 +20,12 @@ import com.atlassian.bitbucket.util.PageRequestImpl;
 import com.atlassian.plugin.spring.scanner.annotation.component.Scanned;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.atlassian.sal.api.auth.LoginUriProvider;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
 import com.atlassian.sal.api.user.UserKey;
 import com.atlassian.sal.api.user.UserManager;
 import com.atlassian.templaterenderer.TemplateRenderer;
 import com.ngs.stash.externalhooks.Const;
+import com.ngs.stash.externalhooks.dao.ExternalHooksSettingsDao;
 
 import org.json.simple.JSONObject;
 import org.slf4j.LoggerFactory;
@@ -37,17 +39,20 @@ public class Diagnostics extends HttpServlet {
   private TemplateRenderer templateRenderer;
   private LoginUriProvider loginUriProvider;
   private HookScriptService hookScriptService;
+  private ExternalHooksSettingsDao settingsDao;
 
   @Inject
   public Diagnostics(
       @ComponentImport HookScriptService hookScriptService,
       @ComponentImport LoginUriProvider loginUriProvider,
       @ComponentImport UserManager userManager,
-      @ComponentImport TemplateRenderer templateRenderer) {
+      @ComponentImport TemplateRenderer templateRenderer,
+      @ComponentImport PluginSettingsFactory pluginSettingsFactory) {
     this.hookScriptService = hookScriptService;
     this.loginUriProvider = loginUriProvider;
     this.templateRenderer = templateRenderer;
     this.userManager = userManager;
+    this.settingsDao = new ExternalHooksSettingsDao(pluginSettingsFactory);
   }
 
   @Override
@@ -150,6 +155,8 @@ public class Diagnostics extends HttpServlet {
     if (request.getParameter("action") != null) {
       if (request.getParameter("action").equals("remove_by_plugin_key")) {
         hookScriptService.deleteByPluginKey(Const.PLUGIN_KEY);
+        // hook scripts are gone, so they must be applied on the next startup
+        settingsDao.bumpHookStateGeneration();
         context.put("success", Boolean.TRUE);
       }
 
@@ -0,0 +1,86 @@
+package com.ngs.stash.externalhooks.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link Throttle} which adjusts its rate to the observed latency of Bitbucket services.
+ *
+ * <p>The latency is compared to the lowest latency seen so far: the rate slowly grows while calls
+ * are about as fast as they can be and is cut down once they become noticeably slower, which means
+ * that the database is busy with something else. The rate always stays within given bounds.
+ */
+public class AdaptiveThrottle extends Throttle {
+  private static Logger log = LoggerFactory.getLogger(AdaptiveThrottle.class);
+
+  // rate is adjusted once per given amount of observed calls
+  private static final int ADJUST_EVERY = 20;
+
+  private static final double SMOOTHING = 0.2;
+  private static final double SLOW = 2.0;
+  private static final double FAST = 1.3;
+  private static final double DECREASE = 0.7;
+  private static final double INCREASE = 0.05;
+
+  // lets the baseline recover if the lowest latency was a lucky outlier
+  private static final double BASELINE_DRIFT = 1.01;
+
+  private final double minRate;
+  private final double maxRate;
+
+  // guarded by this
+  private double latency;
+  private double baseline;
+  private int observed;
+
+  public AdaptiveThrottle(double minRate, double maxRate, double initialRate) {
+    super(1, TimeUnit.SECONDS);
+
+    this.minRate = minRate;
+    this.maxRate = Math.max(minRate, maxRate);
+
+    setRate(clamp(initialRate));
+  }
+
+  @Override
+  public synchronized void onLatency(long nanos) {
+    if (latency == 0) {
+      latency = nanos;
+    } else {
+      latency += SMOOTHING * (nanos - latency);
+    }
+
+    if (++observed % ADJUST_EVERY != 0) {
+      return;
+    }
+
+    if (baseline == 0 || latency < baseline) {
+      baseline = latency;
+    } else {
+      baseline *= BASELINE_DRIFT;
+    }
+
+    double rate = getRate();
+    if (latency > baseline * SLOW) {
+      rate = clamp(rate * DECREASE);
+    } else if (latency < baseline * FAST) {
+      rate = clamp(rate + maxRate * INCREASE);
+    } else {
+      return;
+    }
+
+    setRate(rate);
+
+    log.debug(
+        "adjusted rate to {}/s: latency={}us baseline={}us",
+        Math.round(rate),
+        Math.round(latency / 1000),
+        Math.round(baseline / 1000));
+  }
+
+  private double clamp(double rate) {
+    return Math.max(minRate, Math.min(rate, maxRate));
+  }
+}
@@ -0,0 +1,28 @@
+package com.ngs.stash.externalhooks.util;
+
+import java.util.function.Supplier;
+
+/** Receives latency of calls to Bitbucket services, see {@link AdaptiveThrottle}. */
+public interface LatencyObserver {
+  LatencyObserver NONE = (nanos) -> {};
+
+  void onLatency(long nanos);
+
+  /** Runs the call and reports how long it took. */
+  default <T> T time(Supplier<T> call) {
+    long start = System.nanoTime();
+    try {
+      return call.get();
+    } finally {
+      onLatency(System.nanoTime() - start);
+    }
+  }
+
+  /** Same as {@link #time(Supplier)} for calls without result. */
+  default void run(Runnable call) {
+    time(() -> {
+      call.run();
+      return null;
+    });
+  }
+}
@@ -0,0 +1,152 @@
+package com.ngs.stash.externalhooks.util;
+
+import java.util.Arrays;
+
+/**
+ * Hash map with primitive long keys, so looking up a value neither boxes the key nor builds a
+ * string. Uses open addressing with linear probing; values can't be null.
+ *
+ * <p>Not thread-safe.
+ */
+public class LongObjectMap<V> {
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] keys;
+  private Object[] values;
+  private int size;
+
+  public LongObjectMap() {
+    this(MIN_CAPACITY);
+  }
+
+  public LongObjectMap(int expected) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < expected * 2) {
+      capacity <<= 1;
+    }
+
+    keys = new long[capacity];
+    values = new Object[capacity];
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    for (int slot = slot(key); values[slot] != null; slot = next(slot)) {
+      if (keys[slot] == key) {
+        return (V) values[slot];
+      }
+    }
+
+    return null;
+  }
+
+  public void put(long key, V value) {
+    if (value == null) {
+      throw new IllegalArgumentException("null values are not supported");
+    }
+
+    int slot = slot(key);
+    for (; values[slot] != null; slot = next(slot)) {
+      if (keys[slot] == key) {
+        values[slot] = value;
+        return;
+      }
+    }
+
+    keys[slot] = key;
+    values[slot] = value;
+    size++;
+
+    // keeping the load factor under 1/2, so probe sequences stay short
+    if (size * 2 > values.length) {
+      resize(values.length * 2);
+    }
+  }
+
+  public void remove(long key) {
+    int slot = slot(key);
+    for (; values[slot] != null; slot = next(slot)) {
+      if (keys[slot] == key) {
+        break;
+      }
+    }
+
+    if (values[slot] == null) {
+      return;
+    }
+
+    values[slot] = null;
+    size--;
+
+    // shifting following entries back instead of leaving a tombstone, so
+    // lookups never have to skip removed entries
+    for (int gap = slot, i = next(slot); values[i] != null; i = next(i)) {
+      int home = slot(keys[i]);
+      if (((i - home) & mask()) >= ((i - gap) & mask())) {
+        keys[gap] = keys[i];
+        values[gap] = values[i];
+        values[i] = null;
+        gap = i;
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** Calls the consumer for every entry, the map must not be modified meanwhile. */
+  @SuppressWarnings("unchecked")
+  public void forEach(Consumer<? super V> consumer) {
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != null) {
+        consumer.accept(keys[i], (V) values[i]);
+      }
+    }
+  }
+
+  public void clear() {
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  private void resize(int capacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+
+    keys = new long[capacity];
+    values = new Object[capacity];
+
+    for (int i = 0; i < oldValues.length; i++) {
+      if (oldValues[i] == null) {
+        continue;
+      }
+
+      int slot = slot(oldKeys[i]);
+      while (values[slot] != null) {
+        slot = next(slot);
+      }
+
+      keys[slot] = oldKeys[i];
+      values[slot] = oldValues[i];
+    }
+  }
+
+  private int slot(long key) {
+    // ids are sequential, so bits are mixed to spread neighbours across slots
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32)) & mask();
+  }
+
+  private int next(int slot) {
+    return (slot + 1) & mask();
+  }
+
+  private int mask() {
+    return values.length - 1;
+  }
+
+  public interface Consumer<V> {
+    void accept(long key, V value);
+  }
+}
@@ -0,0 +1,77 @@
+package com.ngs.stash.externalhooks.util;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+import com.atlassian.bitbucket.util.Page;
+import com.atlassian.bitbucket.util.PageRequest;
+
+/**
+ * Iterates over paged results while the next page is already being fetched in background, so the
+ * database round trip doesn't wait for the current page to be processed.
+ */
+public class PrefetchingIterator<T> implements Iterator<T> {
+  private final Function<PageRequest, Page<T>> fetcher;
+  private final Executor executor;
+
+  private Iterator<T> current = Collections.emptyIterator();
+  private CompletableFuture<Page<T>> next;
+
+  public PrefetchingIterator(
+      Function<PageRequest, Page<T>> fetcher, Executor executor, PageRequest first) {
+    this.fetcher = fetcher;
+    this.executor = executor;
+    this.next = fetch(first);
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (!current.hasNext()) {
+      if (next == null) {
+        return false;
+      }
+
+      Page<T> page = await(next);
+      next = null;
+
+      PageRequest nextRequest = page.getNextPageRequest();
+      if (page.getSize() != 0 && nextRequest != null) {
+        next = fetch(nextRequest);
+      }
+
+      current = page.getValues().iterator();
+    }
+
+    return true;
+  }
+
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    return current.next();
+  }
+
+  private CompletableFuture<Page<T>> fetch(PageRequest request) {
+    return CompletableFuture.supplyAsync(() -> fetcher.apply(request), executor);
+  }
+
+  private Page<T> await(CompletableFuture<Page<T>> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+
+      throw e;
+    }
+  }
+}
@@ -25,6 +25,19 @@ public class ScopeUtil {
     return scope.getType().equals(ScopeType.PROJECT);
   }
 
+  /** @return id of the project of the scope or 0 for the global scope */
+  public static int getProjectId(Scope scope) {
+    if (scope.getType().equals(ScopeType.REPOSITORY)) {
+      return ((RepositoryScope) scope).getRepository().getProject().getId();
+    }
+
+    if (scope.getType().equals(ScopeType.PROJECT)) {
+      return ((ProjectScope) scope).getProject().getId();
+    }
+
+    return 0;
+  }
+
   public static String toString(Scope scope) {
     if (scope.getType().equals(ScopeType.REPOSITORY)) {
       Repository repository = ((RepositoryScope) scope).getRepository();
@@ -0,0 +1,55 @@
+package com.ngs.stash.externalhooks.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads operations evenly over time. Every {@link #acquire()} call reserves the next free time
+ * slot, so the rate stays the same no matter how many threads share a single instance.
+ */
+public class Throttle implements LatencyObserver {
+  private volatile long intervalNanos;
+  private long nextSlot;
+
+  public Throttle(long interval, TimeUnit unit) {
+    this.intervalNanos = unit.toNanos(interval);
+    this.nextSlot = System.nanoTime();
+  }
+
+  public void acquire() {
+    long wait;
+    synchronized (this) {
+      long now = System.nanoTime();
+      if (nextSlot < now) {
+        nextSlot = now;
+      }
+
+      wait = nextSlot - now;
+      nextSlot += intervalNanos;
+    }
+
+    if (wait <= 0) {
+      return;
+    }
+
+    try {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Latency is ignored, the rate is fixed. */
+  @Override
+  public void onLatency(long nanos) {
+    //
+  }
+
+  /** @return operations per second */
+  public double getRate() {
+    return (double) TimeUnit.SECONDS.toNanos(1) / intervalNanos;
+  }
+
+  protected void setRate(double rate) {
+    this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+  }
+}
@@ -1,36 +1,126 @@
 package com.ngs.stash.externalhooks.util;
 
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.project.Project;
 import com.atlassian.bitbucket.project.ProjectService;
+import com.atlassian.bitbucket.project.ProjectType;
 import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositorySearchRequest;
 import com.atlassian.bitbucket.repository.RepositoryService;
-import com.atlassian.bitbucket.user.ApplicationUser;
-import com.atlassian.bitbucket.user.UserSearchRequest;
-import com.atlassian.bitbucket.user.UserService;
+import com.atlassian.bitbucket.user.SecurityService;
 import com.atlassian.bitbucket.util.Page;
 import com.atlassian.bitbucket.util.PageRequest;
 import com.atlassian.bitbucket.util.PageRequestImpl;
 
 public class Walker {
+  private static final int DEFAULT_PAGE_SIZE = 10;
+
   private RepositoryService repositoryService;
   private ProjectService projectService;
-  private UserService userService;
+  private SecurityService securityService;
+  private int pageSize = DEFAULT_PAGE_SIZE;
+
+  // Fetches next pages for streams, shared with copies of the walker. Threads
+  // are created on demand and die when idle, so nothing is kept running
+  // between walks.
+  private ExecutorService prefetcher;
 
   public Walker(
-      UserService userService, ProjectService projectService, RepositoryService repositoryService) {
-    this.userService = userService;
+      ProjectService projectService,
+      RepositoryService repositoryService,
+      SecurityService securityService) {
     this.projectService = projectService;
     this.repositoryService = repositoryService;
+    this.securityService = securityService;
+
+    this.prefetcher = Executors.newCachedThreadPool((runnable) -> {
+      Thread thread = new Thread(runnable, "external-hooks-walker");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  private Walker(Walker origin, int pageSize) {
+    this.projectService = origin.projectService;
+    this.repositoryService = origin.repositoryService;
+    this.securityService = origin.securityService;
+    this.prefetcher = origin.prefetcher;
+    this.pageSize = pageSize;
+  }
+
+  /** Returns a copy of this walker which fetches given amount of items by a single query. */
+  public Walker withPageSize(int pageSize) {
+    return new Walker(this, Math.max(1, Math.min(pageSize, PageRequest.MAX_PAGE_LIMIT)));
+  }
+
+  /** Stops fetching pages in background, streams of this walker and its copies fail then. */
+  public void stop() {
+    prefetcher.shutdownNow();
+  }
+
+  /**
+   * Lazily streams all projects, the next page is fetched in background while the current one is
+   * consumed. The stream can be made parallel, it is split by projects then.
+   *
+   * <p>Security context is bound to a thread, so pages are fetched with elevated permissions.
+   */
+  public Stream<Project> streamProjects() {
+    return stream(request -> securityService
+        .withPermission(Permission.SYS_ADMIN, "atlassian-external-hooks: walk projects")
+        .call(() -> projectService.findAll(request)));
+  }
+
+  /** Same as {@link #streamProjects()}, but streams repositories of the given project. */
+  public Stream<Repository> streamRepositories(Project project) {
+    return stream(request -> securityService
+        .withPermission(Permission.SYS_ADMIN, "atlassian-external-hooks: walk repositories")
+        .call(() -> repositoryService.findByProjectId(project.getId(), request)));
+  }
+
+  /** Same as {@link #streamProjects()}, but streams repositories of all personal projects. */
+  public Stream<Repository> streamPersonalRepositories() {
+    RepositorySearchRequest search =
+        new RepositorySearchRequest.Builder().projectType(ProjectType.PERSONAL).build();
+
+    return stream(request -> securityService
+        .withPermission(Permission.SYS_ADMIN, "atlassian-external-hooks: walk repositories")
+        .call(() -> repositoryService.search(search, request)));
+  }
+
+  private <T> Stream<T> stream(Function<PageRequest, Page<T>> fetcher) {
+    Iterator<T> iterator =
+        new PrefetchingIterator<>(fetcher, prefetcher, new PageRequestImpl(0, pageSize));
+
+    return StreamSupport.stream(
+        Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL),
+        false);
   }
 
   public void walk(Callback callback) {
-    walkProjects(callback);
+    walkProjects(project -> {
+      walk(project, callback);
+
+      callback.onProject(project);
+    });
 
-    walkUsers(callback);
+    walkPersonalRepositories(callback);
   }
 
-  private void walkProjects(Callback callback) {
-    PageRequest page = new PageRequestImpl(0, 10);
+  /**
+   * Walks over projects only, repositories of every project should be walked by the callback
+   * itself if needed.
+   */
+  public void walkProjects(ProjectCallback callback) {
+    PageRequest page = new PageRequestImpl(0, pageSize);
 
     while (true) {
       Page<Project> projects = this.projectService.findAll(page);
@@ -38,11 +128,7 @@ public class Walker {
         break;
       }
 
-      projects.stream().forEach(project -> {
-        walk(project, callback);
-
-        callback.onProject(project);
-      });
+      projects.stream().forEach(project -> callback.onProject(project));
 
       page = projects.getNextPageRequest();
       if (page == null) {
@@ -51,37 +137,18 @@ public class Walker {
     }
   }
 
-  private void walkUsers(Callback callback) {
-    int start = 0;
-    int limit = 10;
-    UserSearchRequest searchRequest = (new UserSearchRequest.Builder()).build();
-    while (true) {
-      //
-      PageRequest page = new PageRequestImpl(start, limit);
-      Page<ApplicationUser> users = this.userService.search(searchRequest, page);
-      if (users.getSize() == 0) {
-        break;
-      }
-
-      users.stream().forEach((user) -> {
-        walk(user, callback);
-      });
-
-      PageRequest nextPage = users.getNextPageRequest();
-      if (nextPage == null) {
-        break;
-      }
-
-      start = nextPage.getStart();
-      limit = nextPage.getLimit();
-    }
-  }
+  /**
+   * Walks over repositories in personal projects. Personal repositories are looked up directly
+   * instead of asking every user for repositories, most of users don't have any.
+   */
+  public void walkPersonalRepositories(RepositoryCallback callback) {
+    RepositorySearchRequest request =
+        new RepositorySearchRequest.Builder().projectType(ProjectType.PERSONAL).build();
 
-  private void walk(ApplicationUser user, Callback callback) {
-    PageRequest page = new PageRequestImpl(0, 10);
+    PageRequest page = new PageRequestImpl(0, pageSize);
 
     while (true) {
-      Page<Repository> repos = this.repositoryService.findByOwner(user, page);
+      Page<Repository> repos = this.repositoryService.search(request, page);
       if (repos.getSize() == 0) {
         break;
       }
@@ -96,7 +163,7 @@ public class Walker {
   }
 
   public void walk(Project project, RepositoryCallback callback) {
-    PageRequest page = new PageRequestImpl(0, 10);
+    PageRequest page = new PageRequestImpl(0, pageSize);
 
     while (true) {
       Page<Repository> repos = this.repositoryService.findByProjectId(project.getId(), page);
@@ -113,13 +180,15 @@ public class Walker {
     }
   }
 
-  public interface Callback extends RepositoryCallback {
-    void onProject(Project project);
-
+  public interface Callback extends RepositoryCallback, ProjectCallback {
     // there is no onUser method because this Callback is expected to be used in combination with
     // Hooks Settings and there is no User Scope for Hooks.
   }
 
+  public interface ProjectCallback {
+    void onProject(Project project);
+  }
+
   public interface RepositoryCallback {
     void onRepository(Repository repository);
   }
@@ -111,7 +111,10 @@ var ViewGlobalSettings = function (context, api) {
             } else {
                 this._$progress.setText(
                     "Configuring hook "
-                        + state.current + " of " + state.total + "…"
+                        + state.current + " of "
+                        + (state.total_estimated ? "about " : "") + state.total
+                        + (state.eta >= 0 ? ", " + this._formatEta(state.eta) + " left" : "")
+                        + "…"
                 );
             }
         } else {
@@ -123,6 +126,19 @@ var ViewGlobalSettings = function (context, api) {
         return state;
     }
 
+    this._formatEta = function (seconds) {
+        if (seconds < 60) {
+            return seconds + "s";
+        }
+
+        var minutes = Math.floor(seconds / 60);
+        if (minutes < 60) {
+            return minutes + "m " + (seconds % 60) + "s";
+        }
+
+        return Math.floor(minutes / 60) + "h " + (minutes % 60) + "m";
+    }
+
     this._renderSettings = function (settings) {
         this._$.find('input').prop('checked', false);
 
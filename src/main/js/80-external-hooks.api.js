@@ -20,10 +20,18 @@ var API = function (baseURL) {
             return this.factory() + 'hooks';
         },
 
+        factoryPlan: function () {
+            return this.factory() + 'plan';
+        },
+
         factoryState: function (id) {
             return this.factory() + 'state/' + id;
         },
 
+        factoryStateAction: function (id, action) {
+            return this.factoryState(id) + '/' + action;
+        },
+
         globalHook: function(kind) {
             return this.root() + 'global-hooks/' + kind;
         }
@@ -75,6 +83,16 @@ var API = function (baseURL) {
         );
     }
 
+    this.planHooksFactory = function () {
+        return $.ajax(
+            this.urls.factoryPlan(),
+            {
+                method: "POST",
+                headers: this._headers
+            }
+        );
+    }
+
     this.getHooksFactoryState = function (id) {
         return $.ajax(
             this.urls.factoryState(id),
@@ -85,6 +103,28 @@ var API = function (baseURL) {
         );
     }
 
+    this.pauseHooksFactory = function (id) {
+        return this._postFactoryStateAction(id, 'pause');
+    }
+
+    this.resumeHooksFactory = function (id) {
+        return this._postFactoryStateAction(id, 'resume');
+    }
+
+    this.cancelHooksFactory = function (id) {
+        return this._postFactoryStateAction(id, 'cancel');
+    }
+
+    this._postFactoryStateAction = function (id, action) {
+        return $.ajax(
+            this.urls.factoryStateAction(id, action),
+            {
+                method: "POST",
+                headers: this._headers
+            }
+        );
+    }
+
     this.getGlobalHook = function (kind) {
         return $.ajax(
             this.urls.globalHook(kind),